@@ -62,14 +62,24 @@ public class Loader implements Runnable {
                         init();
                         int docsPerFile = Integer.parseInt(args[3]);
                         WriteFilesAction wnd = new WriteFilesAction(conf, source, dest, docsPerFile);
+                        if (args.length > 4 && !"-".equals(args[4])) {
+                            wnd.setSplits(Integer.parseInt(args[4]), args.length > 5 && !"-".equals(args[5]) ? args[5] : null);
+                        }
+                        if (args.length > 8) {
+                            wnd.setParallelism(Integer.parseInt(args[6]), Integer.parseInt(args[7]), Integer.parseInt(args[8]));
+                        }
+                        if (args.length > 9) {
+                            wnd.setBlobThreshold(Integer.parseInt(args[9]));
+                        }
                         Long filesWritten = loginUser.doAs(wnd);
                         System.out.println("Wrote " + filesWritten + " files from " + source + " to sequencefiles in " + dest + ".");
+                        System.out.println(wnd.getThroughput());
                     } catch (IOException e) {
                         logger.debug(e);
                         System.out.println("Failed writing to HDFS: " + e.getMessage());
                     } catch (NumberFormatException e) {
                         logger.debug(e);
-                        System.out.println("Files per sequencefile is not specified correctly: " + e.getMessage());
+                        System.out.println("A number is not specified correctly: " + e.getMessage());
                     }
                 }
             } else if ("unload".equals(mode)) {
@@ -77,11 +87,18 @@ public class Loader implements Runnable {
                 try {
                     init();
                     ReadFilesAction rnd = new ReadFilesAction(conf, source, dest);
+                    if (args.length > 3) {
+                        rnd.setThreads(Integer.parseInt(args[3]));
+                    }
                     Long filesRead = loginUser.doAs(rnd);
                     System.out.println("Read " + filesRead + " files from sequencefiles in " + source + " to " + dest + ".");
+                    System.out.println(rnd.getThroughput());
                 } catch (IOException e) {
                     logger.debug(e);
                     System.out.println("Failed reading from HDFS: " + e.getMessage());
+                } catch (NumberFormatException e) {
+                    logger.debug(e);
+                    System.out.println("The number of threads is not specified correctly: " + e.getMessage());
                 }
             } else {
                 showusage = true;
@@ -103,8 +120,19 @@ public class Loader implements Runnable {
         System.out.println(" 1.) a mode: can be one of 'load' or 'unload' to upload to, or download from, HDFS respectively.");
         System.out.println(" 2.) a source: for download this should be a path on HDFS, for upload a path on the local filesystem.");
         System.out.println(" 3.) a destination: for download this should be a path on the local filesystem, for upload a path on HDFS.");
-        System.out.println(" 4.) a files per sequencefile setting (only for upload) the tool can distribute the files to one or more destination sequencefiles.");
-        System.out.println("     Use a setting of -1 to write all documents to one file only.");
+        System.out.println(" 4.) for upload a files per sequencefile setting: the tool can distribute the files to one or more destination sequencefiles.");
+        System.out.println("     Use a setting of -1 to write all documents to one file only. For download (optional) the number of sequencefiles");
+        System.out.println("     read at the same time (default 4).");
+        System.out.println(" 5.) (optional, only for upload, - for none) a number of sequencefiles: the files are distributed over this many sequencefiles so that each takes");
+        System.out.println("     about the same time to process (the files per sequencefile setting is ignored). Set packedInput in the pipeline layout to process");
+        System.out.println("     each sequencefile in one map task.");
+        System.out.println(" 6.) (optional, only for upload, - for none) step timings: the <outputpath>_timings file on HDFS of an earlier pipeline run, used to estimate the");
+        System.out.println("     processing time of the files from their size.");
+        System.out.println(" 7.-9.) (optional, only for upload) the number of reader threads (default 8), the number of sequencefiles written at the same");
+        System.out.println("     time (default 4) and the memory in MB for files that are read but not yet written (default 512).");
+        System.out.println(" 10.) (optional, only for upload) the size in MB from which files are stored as a separate blob in <destination parent>/_blobs");
+        System.out.println("     instead of in a sequencefile (default 256, 0 for never). The pipeline and the download read the blobs transparently;");
+        System.out.println("     delete the _blobs directory together with the sequencefiles.");
         System.out.println();
 //		System.out.println("Some examples:");
 //		System.out.println("Upload /foo/* to a single file in /bar/file_0 on HDFS: java -jar newsreader-hadoop.jar loader load /foo /bar/file -1");
@@ -15,37 +15,60 @@
  */
 package nl.surfsara.hadoop.mtchadoop.loader;
 
-import org.apache.commons.io.IOUtils;
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.BlobReference;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.Reader.Option;
 import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.nio.charset.Charset;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Accessing HDFS needs to be performed with privileges for a principal (user)
  * enabled. This is an implementation of a PriviligedAction that, as the logged
  * in user, reads bytes from a sequence file and stores these on the local file
  * system as files. The file names are determined by the key in the sequencefile.
+ * Documents stored as a blob are copied from their blob.
+ * <p/>
+ * Several sequence files are read at the same time. Each value is written to
+ * its file straight from the buffer of the record reader through a file
+ * channel, without copying it first. The throughput is reported while the
+ * files are read.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class ReadFilesAction implements PrivilegedAction<Long> {
+    private static final Logger logger = Logger.getLogger(ReadFilesAction.class);
+    private static final long REPORT_INTERVAL = 10000;
 
     private Configuration conf;
     private String source;
     private String dest;
+    private int threads = 4;
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile long start;
+    private volatile long end;
 
     public ReadFilesAction(Configuration conf, String source, String dest) {
         this.conf = conf;
@@ -53,44 +76,113 @@ public class ReadFilesAction implements PrivilegedAction<Long> {
         this.dest = dest;
     }
 
+    /**
+     * Set the number of sequence files that are read at the same time.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
     @Override
     public Long run() {
-        long numfilesread = 0;
         Path sPath = new Path(source);
-        File destDir = new File(dest);
+        final File destDir = new File(dest);
         if (destDir.isDirectory()) {
             destDir.mkdirs();
+            start = System.currentTimeMillis();
+            ExecutorService readers = Executors.newFixedThreadPool(threads);
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println(getThroughput());
+                }
+            }, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
             try {
                 FileSystem fileSystem = FileSystem.get(conf);
                 FileStatus[] globStatus = fileSystem.globStatus(sPath);
-                for (FileStatus fss : globStatus) {
+                List<Future<Long>> results = new ArrayList<Future<Long>>();
+                for (final FileStatus fss : globStatus) {
                     if (fss.isFile()) {
-                        Option optPath = SequenceFile.Reader.file(fss.getPath());
-                        SequenceFile.Reader r = new SequenceFile.Reader(conf, optPath);
-
-                        Text key = new Text();
-                        BytesWritable val = new BytesWritable();
-
-                        while (r.next(key, val)) {
-                            File outputFile = new File(destDir, key.toString());
-                            FileOutputStream fos = new FileOutputStream(outputFile);
-                            InputStream is = new ByteArrayInputStream(val.copyBytes());
-                            IOUtils.copy(is, fos);
-                            fos.flush();
-                            fos.close();
-                            numfilesread++;
-                        }
-                        r.close();
+                        results.add(readers.submit(new Callable<Long>() {
+                            @Override
+                            public Long call() throws Exception {
+                                return unload(fss.getPath(), destDir);
+                            }
+                        }));
+                    }
+                }
+                for (Future<Long> result : results) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        logger.error(e.getCause());
+                        e.getCause().printStackTrace();
                     }
-
                 }
             } catch (Exception e) {
                 e.printStackTrace();
+            } finally {
+                reporter.shutdownNow();
+                readers.shutdownNow();
             }
+            // The final throughput is printed by the caller
+            end = System.currentTimeMillis();
         } else {
             System.out.println("Destination should be a directory.");
         }
-        return numfilesread;
+        return filesRead.get();
+    }
+
+    /**
+     * Gets a summary of the number of files and bytes read so far (or in
+     * total, once run has finished) and the rate at which they were read.
+     *
+     * @return the summary
+     */
+    public String getThroughput() {
+        double seconds = Math.max(1, (end > 0 ? end : System.currentTimeMillis()) - start) / 1000.0;
+        double mb = bytesRead.get() / (1024.0 * 1024.0);
+        return String.format("Unloaded %d files (%.1f MB) in %.1f s: %.1f files/s, %.1f MB/s.", filesRead.get(), mb, seconds, filesRead.get() / seconds, mb / seconds);
+    }
+
+    private long unload(Path path, File destDir) throws IOException {
+        Option optPath = SequenceFile.Reader.file(path);
+        SequenceFile.Reader r = new SequenceFile.Reader(conf, optPath);
+        long files = 0;
+        try {
+            Text key = new Text();
+            BytesWritable val = new BytesWritable();
+            while (r.next(key, val)) {
+                File outputFile = new File(destDir, key.toString());
+                FileOutputStream fos = new FileOutputStream(outputFile);
+                long bytes;
+                try {
+                    BlobReference blob = BlobReference.parse(val);
+                    if (blob != null) {
+                        bytes = blob.copy(conf, fos);
+                    } else {
+                        // The backing array is larger than the value; only write its length
+                        FileChannel channel = fos.getChannel();
+                        ByteBuffer buffer = ByteBuffer.wrap(val.getBytes(), 0, val.getLength());
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        bytes = val.getLength();
+                    }
+                } finally {
+                    fos.close();
+                }
+                files++;
+                filesRead.incrementAndGet();
+                bytesRead.addAndGet(bytes);
+            }
+        } finally {
+            r.close();
+        }
+        return files;
     }
 
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.loader;
+
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.StepTimings;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Distributes documents over a number of splits (sequence files that are each
+ * processed by one map task) so that every split takes about the same time to
+ * process. The expected runtime of a document is estimated from its size with
+ * the timing statistics of the steps of an earlier run (see StepTimings).
+ * Without statistics (or when none of the steps recorded a runtime) the
+ * cost of a document is its size plus a fixed cost per document. Documents
+ * are assigned in order of decreasing cost to the split with the lowest total
+ * cost (longest processing time first).
+ */
+public class SplitPlanner {
+    private static final Logger logger = Logger.getLogger(SplitPlanner.class);
+    // Without timings a document costs as much as this many bytes on top of its size
+    private static final long DEFAULT_FIXED_BYTES = 64 * 1024;
+    private static final double MIN_MS = 1;
+
+    private final List<StepTimings> timings;
+
+    /**
+     * @param timings the timings of the steps of an earlier run, empty when not available
+     */
+    public SplitPlanner(List<StepTimings> timings) {
+        // Steps without documents (e.g. of a failed run, or of other step names) estimate nothing
+        List<StepTimings> recorded = new ArrayList<StepTimings>();
+        for (StepTimings timing : timings) {
+            if (timing.getDocuments() > 0 && (timing.getFixedMs() > 0 || timing.getMsPerKb() > 0)) {
+                recorded.add(timing);
+            }
+        }
+        if (!timings.isEmpty() && recorded.isEmpty()) {
+            logger.warn("None of the steps in the timings recorded a runtime; planning on document size instead.");
+        }
+        this.timings = recorded;
+    }
+
+    /**
+     * Estimate the cost of a document. The unit is ms when timings are
+     * available and bytes otherwise; only the relative cost matters.
+     *
+     * @param bytes the size of the document
+     * @return the cost of the document
+     */
+    public double estimate(long bytes) {
+        if (timings.isEmpty()) {
+            return bytes + DEFAULT_FIXED_BYTES;
+        }
+        double ms = 0;
+        for (StepTimings timing : timings) {
+            ms += timing.estimateMs(bytes);
+        }
+        // An empty document still takes some time
+        return Math.max(ms, MIN_MS);
+    }
+
+    /**
+     * Distribute files over splits.
+     *
+     * @param files  the files to distribute
+     * @param splits the number of splits
+     * @return the files of each split; splits that would be empty are left out
+     */
+    public List<List<File>> plan(List<File> files, int splits) {
+        List<Split> result = new ArrayList<Split>();
+        PriorityQueue<Split> byCost = new PriorityQueue<Split>(Math.max(1, splits), new Comparator<Split>() {
+            @Override
+            public int compare(Split a, Split b) {
+                return Double.compare(a.cost, b.cost);
+            }
+        });
+        for (int i = 0; i < splits; i++) {
+            Split split = new Split();
+            result.add(split);
+            byCost.add(split);
+        }
+        List<Document> documents = new ArrayList<Document>(files.size());
+        for (File file : files) {
+            documents.add(new Document(file, estimate(file.length())));
+        }
+        Collections.sort(documents, new Comparator<Document>() {
+            @Override
+            public int compare(Document a, Document b) {
+                return Double.compare(b.cost, a.cost);
+            }
+        });
+        for (Document document : documents) {
+            Split split = byCost.poll();
+            split.files.add(document.file);
+            split.cost += document.cost;
+            byCost.add(split);
+        }
+        List<List<File>> plan = new ArrayList<List<File>>();
+        double total = 0;
+        double max = 0;
+        for (Split split : result) {
+            if (!split.files.isEmpty()) {
+                plan.add(split.files);
+                total += split.cost;
+                max = Math.max(max, split.cost);
+            }
+        }
+        if (!plan.isEmpty()) {
+            String unit = timings.isEmpty() ? " bytes" : " ms";
+            logger.info("Planned " + files.size() + " documents in " + plan.size() + " splits: expected cost per split " + Math.round(total / plan.size()) + unit + " on average, " + Math.round(max) + unit + " at most.");
+        }
+        return plan;
+    }
+
+    private static class Split {
+        private final List<File> files = new ArrayList<File>();
+        private double cost;
+    }
+
+    private static class Document {
+        private final File file;
+        private final double cost;
+
+        private Document(File file, double cost) {
+            this.file = file;
+            this.cost = cost;
+        }
+    }
+}
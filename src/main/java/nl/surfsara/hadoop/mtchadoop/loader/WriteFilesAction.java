@@ -15,8 +15,12 @@
  */
 package nl.surfsara.hadoop.mtchadoop.loader;
 
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.BlobReference;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.StepTimings;
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.SequenceFile;
@@ -25,113 +29,273 @@ import org.apache.hadoop.io.SequenceFile.Writer.Option;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.DefaultCodec;
-import org.apache.hadoop.mapreduce.lib.output.SequenceFileAsBinaryOutputFormat;
 import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Accessing HDFS needs to be performed with privileges for a principal (user)
  * enabled. This is an implementation of a PriviligedAction that, as the logged
  * in user, writes files from the local file system to one ore more sequence files.
+ * <p/>
+ * Files are loaded in a pipeline: the directory tree is walked in parallel,
+ * reader threads read the files into memory and writer threads append them
+ * to their sequence files. Files that are read but not yet written are kept
+ * within a memory budget. A sequence file is only synced to HDFS when it is
+ * complete.
+ * <p/>
+ * Files from the blob threshold up are not read into memory, but streamed to
+ * a blob in the _blobs directory next to the destination (hidden from the
+ * input of the pipeline); the sequence file holds a reference to the blob
+ * (see BlobReference).
+ * <p/>
+ * Files are either distributed over the sequence files with a fixed number of
+ * files per sequence file, or over a fixed number of sequence files by the
+ * SplitPlanner so that every sequence file takes about the same time to
+ * process in the pipeline.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class WriteFilesAction implements PrivilegedAction<Long> {
 
     private static final Logger logger = Logger.getLogger(WriteFilesAction.class);
+    private static final Source END_OF_SOURCES = new Source(null, -1);
+    private static final Document END_OF_DOCUMENTS = new Document(null, null, 0, -1, 0);
 
     private File file;
-    private SequenceFile.Writer writer;
     private String destination;
     private int docsPerFile;
+    private int splits;
+    private String timingsPath;
+    private int readers = 8;
+    private int writers = 4;
+    private int memoryBudgetKb = 512 * 1024;
+    private long blobThreshold = 256L * 1024 * 1024;
 
     private Configuration conf;
+    private Semaphore memory;
+    private List<BlockingQueue<Document>> writeQueues;
+    // The number of files planned in each split
+    private int[] planned;
+    private final AtomicInteger nextFile = new AtomicInteger();
+    private final AtomicInteger nextWriter = new AtomicInteger();
+    private final AtomicLong filesAppended = new AtomicLong();
+    private final AtomicLong bytesAppended = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private volatile boolean failed;
+    private long elapsed;
 
-    public WriteFilesAction(Configuration conf, String source, String destination, int docsPerFile) throws IOException {
+    public WriteFilesAction(Configuration conf, String source, String destination, int docsPerFile) {
         this.conf = conf;
         file = new File(source);
         this.destination = destination;
         this.docsPerFile = docsPerFile;
-        initWriter(conf, destination + "_0");
     }
 
-    private void initWriter(Configuration conf, String path) throws IOException {
-        CompressionCodec Codec = new DefaultCodec();
-        writer = null;
-        Option optPath = SequenceFile.Writer.file(new Path(path));
-        Option optKey = SequenceFile.Writer.keyClass(Text.class);
-        Option optVal = SequenceFile.Writer.valueClass(BytesWritable.class);
-        Option optCom = SequenceFile.Writer.compression(CompressionType.BLOCK, Codec);
-        writer = SequenceFile.createWriter(conf, optPath, optKey, optVal, optCom);
+    /**
+     * Distribute the files over a fixed number of sequence files with the
+     * SplitPlanner instead of by files per sequence file.
+     *
+     * @param splits      the number of sequence files
+     * @param timingsPath the step timings of an earlier pipeline run on HDFS, or null when not available
+     */
+    public void setSplits(int splits, String timingsPath) {
+        this.splits = splits;
+        this.timingsPath = timingsPath;
+    }
+
+    /**
+     * Set the number of threads and the memory budget of the loader. When all
+     * files go to a single sequence file there is only one writer.
+     *
+     * @param readers  the number of threads that walk the directories and read files
+     * @param writers  the number of sequence files written at the same time
+     * @param memoryMb the maximum size of the files that are read but not yet written
+     */
+    public void setParallelism(int readers, int writers, int memoryMb) {
+        this.readers = Math.max(1, readers);
+        this.writers = Math.max(1, writers);
+        this.memoryBudgetKb = Math.max(1, memoryMb) * 1024;
+    }
+
+    /**
+     * Set the size from which files are stored as a blob.
+     *
+     * @param blobThresholdMb the threshold in MB, 0 to load all files into the sequence files
+     */
+    public void setBlobThreshold(int blobThresholdMb) {
+        this.blobThreshold = blobThresholdMb * 1024L * 1024L;
     }
 
     @Override
     public Long run() {
-        long filesAppended = 0;
-        int numFile = 0;
-        List<File> files = null;
+        long start = System.currentTimeMillis();
+        int writerCount = splits > 0 || docsPerFile > 0 ? writers : 1;
+        memory = new Semaphore(memoryBudgetKb);
+        writeQueues = new ArrayList<BlockingQueue<Document>>();
+        BlockingQueue<Source> readQueue = new ArrayBlockingQueue<Source>(1024);
+        ExecutorService readerPool = Executors.newFixedThreadPool(readers);
+        ExecutorService writerPool = Executors.newFixedThreadPool(writerCount);
+        List<Future<Void>> readerResults = new ArrayList<Future<Void>>();
+        List<Future<Void>> writerResults = new ArrayList<Future<Void>>();
         try {
-            if (validate(file)) {
-                if (file.isDirectory()) {
-                    files = getFileListing(file);
-                } else if (file.isFile()) {
-                    files = new ArrayList<File>();
-                    files.add(file);
+            validate(file);
+            for (int w = 0; w < writerCount; w++) {
+                BlockingQueue<Document> queue = new ArrayBlockingQueue<Document>(1024);
+                writeQueues.add(queue);
+                writerResults.add(writerPool.submit(new DocumentWriter(queue)));
+            }
+            for (int r = 0; r < readers; r++) {
+                readerResults.add(readerPool.submit(new DocumentReader(readQueue)));
+            }
+            if (splits > 0) {
+                BlockingQueue<Source> found = new LinkedBlockingQueue<Source>();
+                new Walker(found).walk(file);
+                List<File> files = new ArrayList<File>();
+                for (Source source : found) {
+                    files.add(source.file);
                 }
-                for (File f : files) {
-                    String name = f.getName();
-                    byte[] content = readContent(f);
-                    if (appendDoc(name, content)) {
-                        filesAppended++;
-                    }
-                    if (docsPerFile > 0) {
-                        if (filesAppended % docsPerFile == 0) {
-                            numFile++;
-                            writer.hflush();
-                            writer.hsync();
-                            writer.close();
-                            initWriter(conf, destination + "_" + numFile);
-                        }
+                List<List<File>> plan = new SplitPlanner(readTimings()).plan(files, splits);
+                planned = new int[plan.size()];
+                for (int i = 0; i < plan.size(); i++) {
+                    planned[i] = plan.get(i).size();
+                }
+                for (int i = 0; i < plan.size(); i++) {
+                    for (File f : plan.get(i)) {
+                        readQueue.put(new Source(f, i));
                     }
                 }
-                writer.hflush();
-                writer.hsync();
-                writer.close();
+            } else {
+                new Walker(readQueue).walk(file);
             }
         } catch (Exception e) {
+            failed = true;
             logger.error(e);
+        } finally {
+            try {
+                for (int r = 0; r < readers; r++) {
+                    readQueue.put(END_OF_SOURCES);
+                }
+                await(readerResults);
+                for (BlockingQueue<Document> queue : writeQueues) {
+                    queue.put(END_OF_DOCUMENTS);
+                }
+                await(writerResults);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error(e);
+            }
+            readerPool.shutdownNow();
+            writerPool.shutdownNow();
+        }
+        elapsed = System.currentTimeMillis() - start;
+        if (filesFailed.get() > 0) {
+            logger.warn("Failed to read " + filesFailed.get() + " files.");
         }
-        return filesAppended;
+        // The throughput is printed by the caller
+        return filesAppended.get();
+    }
+
+    /**
+     * Gets a summary of the number of files and bytes written and the rate
+     * at which they were written.
+     *
+     * @return the summary
+     */
+    public String getThroughput() {
+        double seconds = Math.max(1, elapsed) / 1000.0;
+        double mb = bytesAppended.get() / (1024.0 * 1024.0);
+        return String.format("Loaded %d files (%.1f MB) in %.1f s: %.1f files/s, %.1f MB/s.", filesAppended.get(), mb, seconds, filesAppended.get() / seconds, mb / seconds);
+    }
+
+    private List<StepTimings> readTimings() throws IOException {
+        if (timingsPath == null) {
+            return Collections.emptyList();
+        }
+        List<StepTimings> timings = StepTimings.read(FileSystem.get(conf), timingsPath);
+        for (StepTimings timing : timings) {
+            logger.info("Using timings of pipelineStep " + timing);
+        }
+        return timings;
+    }
+
+    private void await(List<Future<Void>> results) throws InterruptedException {
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                logger.error(e.getCause());
+            }
+        }
+    }
+
+    private SequenceFile.Writer createWriter(String path) throws IOException {
+        CompressionCodec Codec = new DefaultCodec();
+        Option optPath = SequenceFile.Writer.file(new Path(path));
+        Option optKey = SequenceFile.Writer.keyClass(Text.class);
+        Option optVal = SequenceFile.Writer.valueClass(BytesWritable.class);
+        Option optCom = SequenceFile.Writer.compression(CompressionType.BLOCK, Codec);
+        return SequenceFile.createWriter(conf, optPath, optKey, optVal, optCom);
     }
 
     private byte[] readContent(File f) throws IOException {
+        long length = f.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File is too large to load: " + f);
+        }
         FileInputStream fis = new FileInputStream(f);
-        byte[] result =  IOUtils.toByteArray(fis);
-        fis.close();
-        return result;
-    }
-
-    private List<File> getFileListing(File dir) throws FileNotFoundException {
-        List<File> result = new ArrayList<File>();
-        File[] filesAndDirs = dir.listFiles();
-        List<File> filesDirs = Arrays.asList(filesAndDirs);
-        for (File file : filesDirs) {
-            result.add(file);
-            if (!file.isFile()) {
-                List<File> subList = getFileListing(file);
-                result.addAll(subList);
+        try {
+            byte[] result = new byte[(int) length];
+            IOUtils.readFully(fis, result);
+            return result;
+        } finally {
+            fis.close();
+        }
+    }
+
+    private byte[] storeBlob(File f) throws IOException {
+        Path blob = new Path(new Path(new Path(destination).getParent(), "_blobs"), UUID.randomUUID().toString());
+        FileSystem fs = blob.getFileSystem(conf);
+        FileInputStream fis = new FileInputStream(f);
+        long length;
+        boolean stored = false;
+        try {
+            FSDataOutputStream os = fs.create(blob, false);
+            try {
+                length = IOUtils.copyLarge(fis, os);
+            } finally {
+                os.close();
+            }
+            stored = true;
+        } finally {
+            fis.close();
+            if (!stored) {
+                // Do not leave a partial blob behind
+                fs.delete(blob, false);
             }
         }
-        return result;
+        return BlobReference.create(fs.makeQualified(blob), length);
     }
 
     private boolean validate(File f) throws FileNotFoundException {
@@ -150,15 +314,223 @@ public class WriteFilesAction implements PrivilegedAction<Long> {
         return true;
     }
 
-    private boolean appendDoc(String docName, byte[] docContents) {
-        try {
-            writer.append(new Text(docName), new BytesWritable(docContents));
-            writer.hflush();
-            return true;
-        } catch (IOException e) {
-            logger.error(e);
-            return false;
+    /**
+     * The memory budget is kept in KB; a file larger than the budget takes
+     * all of it.
+     */
+    private int memoryPermits(long bytes) {
+        return (int) Math.min(memoryBudgetKb, Math.max(1, (bytes + 1023) / 1024));
+    }
+
+    /**
+     * Walks a directory tree with as many threads as there are readers and
+     * puts the files it finds on a queue.
+     */
+    private class Walker {
+        private final BlockingQueue<Source> found;
+        private final ExecutorService pool = Executors.newFixedThreadPool(readers);
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Walker(BlockingQueue<Source> found) {
+            this.found = found;
+        }
+
+        private void walk(File root) throws InterruptedException {
+            submit(root);
+            synchronized (this) {
+                while (pending.get() > 0) {
+                    wait();
+                }
+            }
+            pool.shutdown();
+        }
+
+        private void submit(final File dir) {
+            pending.incrementAndGet();
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        File[] entries = dir.listFiles();
+                        if (entries == null) {
+                            logger.warn("Failed to list directory: " + dir);
+                            return;
+                        }
+                        for (File entry : entries) {
+                            if (entry.isDirectory()) {
+                                submit(entry);
+                            } else if (entry.isFile()) {
+                                found.put(new Source(entry, -1));
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            synchronized (Walker.this) {
+                                Walker.this.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads files within the memory budget and hands them to the writer of
+     * their sequence file (when planned) or to the writers in turn.
+     */
+    private class DocumentReader implements Callable<Void> {
+        private final BlockingQueue<Source> sources;
+
+        private DocumentReader(BlockingQueue<Source> sources) {
+            this.sources = sources;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            while (true) {
+                Source source = sources.take();
+                if (source == END_OF_SOURCES) {
+                    return null;
+                }
+                if (failed) {
+                    continue;
+                }
+                long size = source.file.length();
+                boolean blob = blobThreshold > 0 && size >= blobThreshold;
+                // A blob is streamed; only its reference is kept in memory
+                int permits = blob ? 1 : memoryPermits(size);
+                memory.acquire(permits);
+                byte[] content;
+                try {
+                    content = blob ? storeBlob(source.file) : readContent(source.file);
+                } catch (IOException e) {
+                    memory.release(permits);
+                    filesFailed.incrementAndGet();
+                    logger.error("Failed to read " + source.file + ": " + e);
+                    if (source.split >= 0) {
+                        // The writer still counts the file towards its split
+                        writeQueues.get(source.split % writeQueues.size()).put(new Document(source.file.getName(), null, 0, source.split, 0));
+                    }
+                    continue;
+                }
+                int writer = source.split >= 0 ? source.split : nextWriter.getAndIncrement() & Integer.MAX_VALUE;
+                writeQueues.get(writer % writeQueues.size()).put(new Document(source.file.getName(), content, size, source.split, permits));
+            }
+        }
+    }
+
+    /**
+     * Appends documents to sequence files. Without a plan the writer rolls
+     * over to a new sequence file after the configured number of files per
+     * sequence file; with a plan it writes the sequence files of the splits
+     * assigned to it and closes each as soon as all its files are handled.
+     */
+    private class DocumentWriter implements Callable<Void> {
+        private final BlockingQueue<Document> documents;
+        private final Map<Integer, SequenceFile.Writer> open = new HashMap<Integer, SequenceFile.Writer>();
+        private final Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+
+        private DocumentWriter(BlockingQueue<Document> documents) {
+            this.documents = documents;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            IOException error = null;
+            while (true) {
+                Document doc = documents.take();
+                if (doc == END_OF_DOCUMENTS) {
+                    break;
+                }
+                try {
+                    if (error == null) {
+                        append(doc);
+                    }
+                } catch (IOException e) {
+                    // Keep taking documents so the readers do not block
+                    error = e;
+                    failed = true;
+                } finally {
+                    memory.release(doc.permits);
+                }
+            }
+            for (Integer split : new ArrayList<Integer>(open.keySet())) {
+                try {
+                    close(split);
+                } catch (IOException e) {
+                    error = error == null ? e : error;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+
+        private void append(Document doc) throws IOException {
+            // A document without content is a planned file that could not be read
+            if (doc.content != null) {
+                SequenceFile.Writer writer = open.get(doc.split);
+                if (writer == null) {
+                    int number = doc.split >= 0 ? doc.split : nextFile.getAndIncrement();
+                    writer = createWriter(destination + "_" + number);
+                    open.put(doc.split, writer);
+                }
+                writer.append(new Text(doc.name), new BytesWritable(doc.content));
+                filesAppended.incrementAndGet();
+                bytesAppended.addAndGet(doc.size);
+            }
+            Integer previous = counts.get(doc.split);
+            int count = (previous == null ? 0 : previous) + 1;
+            counts.put(doc.split, count);
+            if (doc.split >= 0 ? count >= planned[doc.split] : docsPerFile > 0 && count >= docsPerFile) {
+                close(doc.split);
+            }
+        }
+
+        private void close(Integer split) throws IOException {
+            SequenceFile.Writer writer = open.remove(split);
+            counts.remove(split);
+            if (writer != null) {
+                writer.hsync();
+                writer.close();
+            }
         }
     }
 
+    /**
+     * A file to load and the split it is planned in (-1 when not planned).
+     */
+    private static class Source {
+        private final File file;
+        private final int split;
+
+        private Source(File file, int split) {
+            this.file = file;
+            this.split = split;
+        }
+    }
+
+    /**
+     * A file that has been read (or its blob reference), with the memory
+     * permits it holds.
+     */
+    private static class Document {
+        private final String name;
+        private final byte[] content;
+        private final long size;
+        private final int split;
+        private final int permits;
+
+        private Document(String name, byte[] content, long size, int split, int permits) {
+            this.name = name;
+            this.content = content;
+            this.size = size;
+            this.split = split;
+            this.permits = permits;
+        }
+    }
 }
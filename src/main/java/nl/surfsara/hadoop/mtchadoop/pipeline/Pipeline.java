@@ -19,11 +19,29 @@ import cascading.flow.Flow;
 import cascading.flow.FlowDef;
 import cascading.flow.hadoop.HadoopFlowConnector;
 import cascading.property.AppProps;
+import cascading.stats.FlowStats;
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.CarryForwardFlow;
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.DocumentIndex;
 import nl.surfsara.hadoop.mtchadoop.pipeline.flows.PipelineFlow;
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs.DocumentMetadata;
 import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleConstants;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.PipelineStep;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.StepTimings;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -33,6 +51,9 @@ import java.util.Properties;
  */
 public class Pipeline implements Runnable {
     private static final Logger logger = Logger.getLogger(Pipeline.class);
+    private static final String FS_COUNTERS = "org.apache.hadoop.mapreduce.FileSystemCounter";
+    private static final long TASK_TIMEOUT = 7200000;
+    private static final String FINGERPRINT_FILE = "_fingerprint";
     private String[] args;
 
     public Pipeline(String[] args) {
@@ -52,6 +73,8 @@ public class Pipeline implements Runnable {
             String errorPath = args[2];
             String layoutFile = args[3];
             String componentsCache = args[4];
+            String previousCheckpoint = args.length > 5 && !"-".equals(args[5]) ? args[5] : null;
+            String previousOutput = args.length > 6 ? args[6] : null;
 
             try {
                 // Read the pipelinelayout
@@ -59,32 +82,30 @@ public class Pipeline implements Runnable {
                 logger.info("Running pipeline id: " + pl.getPipelineid());
                 logger.info("Running pipeline version: " + pl.getPipelineversion());
 
-                // TODO Supply these at run time or via config
-                // Run the  pipeline
-                Properties properties = new Properties();
-                properties.setProperty("mapreduce.job.complete.cancel.delegation.tokens", "false");
-
-                properties.put("mapreduce.task.timeout", "7200000");
-                properties.put("mapreduce.job.cache.archives", componentsCache + "#" + ModuleConstants.ARCHIVEROOT);
-
-                // Child jvm settings
-//                properties.put("mapreduce.map.java.opts", "-Xmx8G -Dfile.encoding=UTF-8");
-                //properties.put("mapreduce.reduce.java.opts","");
-
-                // Memory limits
-//                properties.put("mapreduce.map.memory.mb", "10240");
-                //properties.put("mapreduce.reduce.memory.mb","");
-
-                // Slow start reducers:
-                properties.put("mapreduce.job.reduce.slowstart.completedmaps", "0.9");
-
-                // Number of reducers
-                properties.put("mapreduce.job.reduces", "5");
-
-                AppProps.setApplicationJarClass(properties, Pipeline.class);
-                HadoopFlowConnector flowConnector = new HadoopFlowConnector(properties);
+                HadoopFlowConnector flowConnector = new HadoopFlowConnector(createProperties(pl, componentsCache));
 
                 PipelineFlow plFlow = new PipelineFlow(pl);
+                Configuration conf = new Configuration();
+                FileSystem fs = FileSystem.get(conf);
+                String restartIndex = outputPath + "_restart.idx";
+                if (previousCheckpoint != null) {
+                    DocumentIndex successes = DocumentIndex.fromTextFiles(fs, previousCheckpoint, 4, 1, 1, DocumentMetadata.SUCCESS);
+                    successes.write(fs, restartIndex);
+                    logger.info("Restarting from checkpoint " + previousCheckpoint + ": " + successes.size() + " documents succeeded in the previous run.");
+                    plFlow.setRestartIndex(restartIndex);
+                }
+                String deltaDir = outputPath + "_delta";
+                String fingerprint = fingerprint(pl, fs, componentsCache);
+                if (previousOutput != null && !fingerprint.equals(readFingerprint(fs, previousOutput + "_manifest"))) {
+                    logger.warn("The layout or the components differ from those of " + previousOutput + "; ignoring its manifest and processing all documents.");
+                    previousOutput = null;
+                }
+                if (previousOutput != null) {
+                    DocumentIndex manifest = DocumentIndex.fromTextFiles(fs, previousOutput + "_manifest", 2, 2);
+                    manifest.write(fs, deltaDir + "/manifest.idx");
+                    logger.info("Delta run against " + previousOutput + ": " + manifest.size() + " documents in previous manifest.");
+                    plFlow.setDeltaIndex(deltaDir + "/manifest.idx");
+                }
 
                 FlowDef flowDef = plFlow.getFlowDefinition(inputPath, outputPath, errorPath);
 
@@ -92,6 +113,24 @@ public class Pipeline implements Runnable {
                 Flow flow = flowConnector.connect(flowDef);
                 flow.writeDOT("pipeline.dot");
                 flow.complete();
+                List<FlowStats> runs = new ArrayList<FlowStats>();
+                runs.add(logStats(flow));
+                if (pl.getOversizedThreshold() > 0) {
+                    FlowStats oversized = runOversized(pl, componentsCache, fs, previousOutput != null ? deltaDir + "/manifest.idx" : null, outputPath, errorPath);
+                    if (oversized != null) {
+                        runs.add(oversized);
+                    }
+                }
+                writeTimings(pl, runs, fs, outputPath + "_timings");
+                if (previousOutput != null) {
+                    carryForward(flowConnector, fs, previousOutput, outputPath, deltaDir);
+                }
+                if (pl.isManifest() || previousOutput != null) {
+                    writeFingerprint(fs, outputPath + "_manifest", fingerprint);
+                }
+                if (previousCheckpoint != null) {
+                    fs.delete(new Path(restartIndex), false);
+                }
             } catch (Exception e) {
                 logger.error(e);
                 e.printStackTrace();
@@ -102,6 +141,191 @@ public class Pipeline implements Runnable {
         }
     }
 
+    // TODO Supply these at run time or via config
+    private Properties createProperties(PipelineLayout pl, String componentsCache) {
+        Properties properties = new Properties();
+        properties.setProperty("mapreduce.job.complete.cancel.delegation.tokens", "false");
+
+        properties.put("mapreduce.task.timeout", Long.toString((long) (TASK_TIMEOUT * pl.getTaskTimeoutFactor())));
+        properties.put("mapreduce.job.cache.archives", componentsCache + "#" + ModuleConstants.ARCHIVEROOT);
+
+        // Child jvm settings and container size from the resource hints of the steps
+        if (pl.getContainerMemoryMb() > 0) {
+            properties.put("mapreduce.map.java.opts", "-Xmx" + pl.getHeapMb() + "m -Dfile.encoding=UTF-8");
+            properties.put("mapreduce.map.memory.mb", Integer.toString(pl.getContainerMemoryMb()));
+        }
+        //properties.put("mapreduce.reduce.java.opts","");
+        if (pl.getContainerVcores() > 0) {
+            properties.put("mapreduce.map.cpu.vcores", Integer.toString(pl.getContainerVcores()));
+        }
+        logger.info("Map containers: memory " + (pl.getContainerMemoryMb() > 0 ? pl.getContainerMemoryMb() + " MB with a heap of " + pl.getHeapMb() + " MB" : "default") + ", vcores " + (pl.getContainerVcores() > 0 ? pl.getContainerVcores() : "default"));
+        //properties.put("mapreduce.reduce.memory.mb","");
+
+        // Slow start reducers:
+        properties.put("mapreduce.job.reduce.slowstart.completedmaps", "0.9");
+
+        // Input packed by the split planner of the loader (or one file per document): one map task for each file
+        if (pl.isPackedInput()) {
+            properties.put("mapreduce.input.fileinputformat.split.minsize", Long.toString(Long.MAX_VALUE));
+        }
+
+        // Number of reducers
+        properties.put("mapreduce.job.reduces", "5");
+
+        AppProps.setApplicationJarClass(properties, Pipeline.class);
+        return properties;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private FlowStats logStats(Flow flow) {
+        FlowStats stats = flow.getFlowStats();
+        logger.info("Pipeline ran " + stats.getStepsCount() + " job(s), read " + stats.getCounterValue(FS_COUNTERS, "HDFS_BYTES_READ") + " bytes and wrote " + stats.getCounterValue(FS_COUNTERS, "HDFS_BYTES_WRITTEN") + " bytes on HDFS.");
+        return stats;
+    }
+
+    /**
+     * Process the documents that were set aside because they are larger than
+     * the threshold, one document per task with the settings for oversized
+     * documents, and add the results to the output of the run.
+     *
+     * @return the statistics of the run, or null when there were no oversized documents
+     */
+    private FlowStats runOversized(PipelineLayout pl, String componentsCache, FileSystem fs, String deltaIndex, String outputPath, String errorPath) throws Exception {
+        String oversizedPath = outputPath + "_oversized";
+        String documents = oversizedPath + "/*/part-*";
+        FileStatus[] parts = fs.globStatus(new Path(documents));
+        FlowStats stats = null;
+        if (parts != null && parts.length > 0) {
+            logger.info("Processing " + parts.length + " oversized documents, one per task.");
+            pl.applyOversizedSettings();
+            PipelineFlow plFlow = new PipelineFlow(pl);
+            if (deltaIndex != null) {
+                plFlow.setDeltaIndex(deltaIndex);
+            }
+            String runPath = oversizedPath + "_run";
+            FlowDef flowDef = plFlow.getFlowDefinition(documents, runPath + "/output", runPath + "/error");
+            @SuppressWarnings("rawtypes")
+            Flow flow = new HadoopFlowConnector(createProperties(pl, componentsCache)).connect(flowDef);
+            flow.complete();
+            stats = logStats(flow);
+            for (String sink : new String[]{"", "_checkpoint", "_manifest", "_unchanged"}) {
+                moveParts(fs, runPath + "/output" + sink, outputPath + sink, "part-oversized-");
+            }
+            for (String sink : new String[]{"", "_steps"}) {
+                moveParts(fs, runPath + "/error" + sink, errorPath + sink, "part-oversized-");
+            }
+            fs.delete(new Path(runPath), true);
+        }
+        fs.delete(new Path(oversizedPath), true);
+        return stats;
+    }
+
+    /**
+     * Move the part files of a sink into another sink, renaming them with a
+     * prefix so they do not replace the part files already there.
+     *
+     * @throws IOException when a part file could not be moved; the source is then left in place
+     */
+    private void moveParts(FileSystem fs, String from, String to, String prefix) throws IOException {
+        FileStatus[] parts = fs.globStatus(new Path(from + "/part-*"));
+        if (parts == null || parts.length == 0) {
+            return;
+        }
+        if (!fs.mkdirs(new Path(to))) {
+            throw new IOException("Failed to create directory: " + to);
+        }
+        for (FileStatus part : parts) {
+            Path target = new Path(to, prefix + part.getPath().getName().substring("part-".length()));
+            if (!fs.rename(part.getPath(), target)) {
+                throw new IOException("Failed to move " + part.getPath() + " to " + target);
+            }
+        }
+    }
+
+    /**
+     * Store the timing statistics of the steps of this run, so the split
+     * planner of the loader can balance the input of a next run.
+     */
+    private void writeTimings(PipelineLayout pl, List<FlowStats> stats, FileSystem fs, String path) {
+        List<StepTimings> timings = new ArrayList<StepTimings>();
+        for (PipelineStep step : pl.getSteps()) {
+            StepTimings timing = StepTimings.fromCounters(step.getName(), stats);
+            logger.info("Timings of pipelineStep " + timing);
+            timings.add(timing);
+        }
+        try {
+            StepTimings.write(fs, path, timings);
+        } catch (IOException e) {
+            logger.warn("Failed to write step timings to " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Compute a fingerprint of everything besides the input that determines
+     * the output of a run: the id and version of the pipeline, the settings
+     * of its steps and the components archive.
+     */
+    private String fingerprint(PipelineLayout pl, FileSystem fs, String componentsCache) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(pl.getPipelineid()).append('\n').append(pl.getPipelineversion()).append('\n');
+        for (PipelineStep step : pl.getSteps()) {
+            sb.append(step.getName()).append(':').append(step.getOutputSettings()).append('\n');
+        }
+        try {
+            FileStatus components = fs.getFileStatus(new Path(componentsCache));
+            sb.append(fs.makeQualified(components.getPath())).append(' ').append(components.getLen()).append(' ').append(components.getModificationTime());
+        } catch (IOException e) {
+            logger.warn("Unable to read the status of the components archive " + componentsCache + ": " + e);
+            sb.append(componentsCache);
+        }
+        return MD5Hash.digest(sb.toString().getBytes(Charset.forName("UTF-8"))).toString();
+    }
+
+    /**
+     * Read the fingerprint stored with a manifest.
+     *
+     * @return the fingerprint, or null when the manifest has none
+     */
+    private String readFingerprint(FileSystem fs, String manifestPath) throws IOException {
+        Path path = new Path(manifestPath, FINGERPRINT_FILE);
+        if (!fs.exists(path)) {
+            return null;
+        }
+        InputStream in = fs.open(path);
+        try {
+            return IOUtils.toString(in, "UTF-8").trim();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeFingerprint(FileSystem fs, String manifestPath, String fingerprint) throws IOException {
+        OutputStream out = fs.create(new Path(manifestPath, FINGERPRINT_FILE), true);
+        try {
+            out.write(fingerprint.getBytes(Charset.forName("UTF-8")));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copy the previous output of the documents that were skipped because
+     * they did not change into the output of this run.
+     */
+    private void carryForward(HadoopFlowConnector flowConnector, FileSystem fs, String previousOutput, String outputPath, String deltaDir) throws Exception {
+        DocumentIndex unchanged = DocumentIndex.fromTextFiles(fs, outputPath + "_unchanged", 2, 1);
+        unchanged.write(fs, deltaDir + "/unchanged.idx");
+        logger.info("Carrying forward the previous output of " + unchanged.size() + " unchanged documents.");
+        String carriedPath = deltaDir + "/carried";
+        FlowDef flowDef = new CarryForwardFlow(deltaDir + "/unchanged.idx").getFlowDefinition(previousOutput, carriedPath, null);
+        @SuppressWarnings("rawtypes")
+        Flow flow = flowConnector.connect(flowDef);
+        flow.complete();
+        moveParts(fs, carriedPath, outputPath, "part-carried-");
+        fs.delete(new Path(deltaDir), true);
+        fs.delete(new Path(outputPath + "_unchanged"), true);
+    }
+
     private void showUsage() {
         System.out.println("Usage: ");
         System.out.println();
@@ -113,9 +337,15 @@ public class Pipeline implements Runnable {
         System.out.println(" 3.) an errorpath: a path on HDFS where files who failed to be processed should be stored.");
         System.out.println(" 4.) a pipeline layout: path to a layout file describing the pipeline to run.");
         System.out.println(" 5.) a components file: a path on HDFS to the components zip file.");
+        System.out.println(" 6.) (optional) a previous checkpoint: the metadata checkpoint (<outputpath>_checkpoint) of an earlier run. Documents that succeeded in that run are skipped. Use - for none.");
+        System.out.println(" 7.) (optional) a previous output: the outputpath of an earlier run that wrote a manifest. Only new or changed documents are processed; the");
+        System.out.println("     output of the unchanged documents is copied from the previous output. When the layout or the components changed since that run,");
+        System.out.println("     its manifest is ignored and all documents are processed.");
         System.out.println();
         System.out.println("A note on the components zip file: the components for the pipeline should be zipped and uploaded to Hadoop. Then, distributed cache is used");
         System.out.println("to distribute and symlink the components to all the compute nodes.");
         System.out.println();
+        System.out.println("Timing statistics of the steps are written to <outputpath>_timings. The load tool can use them to balance the input of a next run.");
+        System.out.println();
     }
 }
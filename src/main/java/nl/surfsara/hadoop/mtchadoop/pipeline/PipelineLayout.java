@@ -15,6 +15,7 @@
  */
 package nl.surfsara.hadoop.mtchadoop.pipeline;
 
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.GenericBashModule;
 import nl.surfsara.hadoop.mtchadoop.pipeline.modules.Module;
 import nl.surfsara.hadoop.mtchadoop.pipeline.modules.PipelineStep;
 import org.apache.commons.io.IOUtils;
@@ -26,7 +27,10 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Class that reads and parses a layout file. The layout file is json document
@@ -36,11 +40,29 @@ import java.util.List;
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class PipelineLayout {
+    // Memory of a task JVM outside of its heap (metaspace, threads, buffers)
+    private static final int JVM_OVERHEAD_MB = 512;
+
     private String pipelineversion;
     private String pipelineid;
     private String description;
     private ArrayList<PipelineStep> steps;
     private String layoutFile;
+    private boolean fused;
+    private int queueSize;
+    private PipelineStep.OutputOrder outputOrder;
+    private CheckpointPolicy checkpoint;
+    private String checkpointCodec;
+    private boolean manifest;
+    private boolean dag;
+    private int heapMb;
+    private boolean packedInput;
+    private long oversizedThreshold;
+    private double oversizedTimeoutFactor;
+    private int oversizedHeapMb;
+    private int oversizedMemoryMb;
+    private double taskTimeoutFactor = 1;
+    private int containerMemoryMb;
 
     public PipelineLayout(String layoutFile) throws FileNotFoundException, IOException, ClassNotFoundException {
         this.layoutFile = layoutFile;
@@ -58,6 +80,21 @@ public class PipelineLayout {
         pipelineid = (String) jo.get("id");
         pipelineversion = (String) jo.get("version");
         description = (String) jo.get("description");
+        fused = jo.optBoolean("fused", false);
+        queueSize = jo.optInt("queueSize", 4);
+        outputOrder = PipelineStep.OutputOrder.valueOf(jo.optString("outputOrder", "input").toUpperCase());
+        checkpoint = CheckpointPolicy.valueOf(jo.optString("checkpoint", "full").toUpperCase());
+        manifest = jo.optBoolean("manifest", false);
+        heapMb = jo.optInt("heapMb", 1024);
+        packedInput = jo.optBoolean("packedInput", false);
+        JSONObject oversized = jo.optJSONObject("oversized");
+        if (oversized != null) {
+            oversizedThreshold = oversized.getLong("thresholdMb") * 1024L * 1024L;
+            oversizedTimeoutFactor = oversized.optDouble("timeoutFactor", 10);
+            oversizedHeapMb = oversized.optInt("heapMb", 2 * heapMb);
+            oversizedMemoryMb = oversized.optInt("memoryMb", 0);
+        }
+        checkpointCodec = jo.optString("checkpointCodec", "org.apache.hadoop.io.compress.DefaultCodec");
         JSONArray ja = jo.getJSONArray("layout");
         steps = new ArrayList<PipelineStep>();
         for (int i = 0; i < ja.length(); i++) {
@@ -69,8 +106,84 @@ public class PipelineLayout {
 
             @SuppressWarnings("unchecked")
             PipelineStep step = new PipelineStep(name, ((Class<? extends Module>) Class.forName(className)), timeOut, numErrorLine);
+            step.setStreaming(jsonObject.optBoolean("streaming", false));
+            step.setBatchSize(jsonObject.optInt("batchSize", 1));
+            step.setBatchWait(jsonObject.optLong("batchWait", 0));
+            if (step.isStreaming() && step.getBatchSize() > 1) {
+                throw new IllegalArgumentException("Step " + name + " cannot combine streaming with a batchSize larger than 1; a batch exchanges its documents through files.");
+            }
+            step.setCaptureBytes(jsonObject.optInt("captureBytes", step.getCaptureBytes()));
+            step.setMaxOutputMb(jsonObject.optInt("maxOutputMb", step.getMaxOutputMb()));
+            step.setScratchMemoryMb(jsonObject.optInt("scratchMemoryMb", 0));
+            step.setConcurrency(jsonObject.optInt("concurrency", 1));
+            step.setCpu(jsonObject.optDouble("cpu", 0));
+            step.setMemoryMb(jsonObject.optInt("memoryMb", 0));
+            step.setMaxConcurrency(jsonObject.optInt("maxConcurrency", 0));
+            step.setOutputOrder(PipelineStep.OutputOrder.valueOf(jsonObject.optString("outputOrder", "input").toUpperCase()));
+            JSONObject cache = jsonObject.optJSONObject("cache");
+            if (cache != null) {
+                step.setCache(true);
+                step.setCacheVersion(cache.optString("version", null));
+                step.setCacheLocalDir(cache.optString("localDir", step.getCacheLocalDir()));
+                step.setCacheLocalMb(cache.optInt("localMb", step.getCacheLocalMb()));
+                step.setCacheHdfsPath(cache.optString("hdfsPath", null));
+            }
+            // Without dependsOn a step depends on the step before it
+            List<String> dependsOn = new ArrayList<String>();
+            JSONArray dependencies = jsonObject.optJSONArray("dependsOn");
+            if (dependencies != null) {
+                for (int d = 0; d < dependencies.length(); d++) {
+                    dependsOn.add(dependencies.getString(d));
+                }
+                dag = true;
+            } else if (!steps.isEmpty()) {
+                dependsOn.add(steps.get(steps.size() - 1).getName());
+            }
+            step.setDependsOn(dependsOn);
+            JSONObject options = jsonObject.optJSONObject("options");
+            if (options != null) {
+                Iterator<String> keys = options.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    step.setOption(key, options.getString(key));
+                }
+            }
             steps.add(step);
         }
+        if (dag) {
+            validateDag();
+        }
+    }
+
+    /**
+     * Steps may only depend on steps listed before them (so the layout order
+     * is a valid execution order) and all branches have to be merged into
+     * the last step, whose output is the output of the pipeline. Only the
+     * GenericBashModule reads the outputs of the dependencies other than the
+     * first, so merge steps have to use it.
+     */
+    private void validateDag() {
+        Set<String> seen = new HashSet<String>();
+        Set<String> used = new HashSet<String>();
+        for (PipelineStep step : steps) {
+            if (step.getDependsOn().size() > 1 && !GenericBashModule.class.isAssignableFrom(step.getModuleClass())) {
+                throw new IllegalArgumentException("Step " + step.getName() + " depends on more than one step, but its module " + step.getModuleClass().getName() + " only reads the output of the first; use " + GenericBashModule.class.getName() + " for merge steps.");
+            }
+            for (String dependency : step.getDependsOn()) {
+                if (!seen.contains(dependency)) {
+                    throw new IllegalArgumentException("Step " + step.getName() + " depends on " + dependency + ", which is not a step listed before it.");
+                }
+                used.add(dependency);
+            }
+            if (!seen.add(step.getName())) {
+                throw new IllegalArgumentException("Duplicate step name: " + step.getName());
+            }
+        }
+        for (int i = 0; i < steps.size() - 1; i++) {
+            if (!used.contains(steps.get(i).getName())) {
+                throw new IllegalArgumentException("The output of step " + steps.get(i).getName() + " is not used; merge it into the last step.");
+            }
+        }
     }
 
     public String getPipelineversion() {
@@ -89,4 +202,195 @@ public class PipelineLayout {
         return pipelineid;
     }
 
+    /**
+     * Check whether all steps run in a single fused operator instead of one
+     * operator per step.
+     *
+     * @return true when the pipeline is fused
+     */
+    public boolean isFused() {
+        return fused;
+    }
+
+    /**
+     * Check whether steps declare their dependencies, so the steps form a
+     * graph instead of a chain. Such a pipeline runs in a single operator
+     * that runs independent steps at the same time.
+     *
+     * @return true when the layout uses dependsOn
+     */
+    public boolean isDag() {
+        return dag;
+    }
+
+    /**
+     * Check whether the input was packed into files of equal expected runtime
+     * by the split planner of the loader. Such files are not split, so each
+     * file is processed by one map task.
+     *
+     * @return true when each input file is a split
+     */
+    public boolean isPackedInput() {
+        return packedInput;
+    }
+
+    /**
+     * Gets the size above which documents are not processed with the other
+     * documents, but in a separate run with one document per task.
+     *
+     * @return the threshold in bytes, or 0 when all documents are processed together
+     */
+    public long getOversizedThreshold() {
+        return oversizedThreshold;
+    }
+
+    /**
+     * Switch to the settings for the run of the oversized documents: the
+     * timeouts of the steps and the tasks are multiplied by the timeout
+     * factor, the tasks get the heap and container memory configured for
+     * oversized documents and every input file (one per document) is
+     * processed by a task of its own.
+     */
+    public void applyOversizedSettings() {
+        for (PipelineStep step : steps) {
+            step.setTimeout((long) (step.getTimeout() * oversizedTimeoutFactor));
+        }
+        taskTimeoutFactor = oversizedTimeoutFactor;
+        heapMb = oversizedHeapMb;
+        containerMemoryMb = oversizedMemoryMb > 0 ? oversizedMemoryMb : heapMb + JVM_OVERHEAD_MB + getStepsMemoryMb();
+        packedInput = true;
+        oversizedThreshold = 0;
+    }
+
+    /**
+     * Gets the factor by which the task timeout is multiplied.
+     *
+     * @return the factor
+     */
+    public double getTaskTimeoutFactor() {
+        return taskTimeoutFactor;
+    }
+
+    /**
+     * Gets the maximum heap of the task JVMs. Only used when the steps have
+     * memory hints; otherwise the cluster defaults apply.
+     *
+     * @return the heap size in MB
+     */
+    public int getHeapMb() {
+        return heapMb;
+    }
+
+    /**
+     * Gets the memory a map container needs to run the pipeline: the heap,
+     * the JVM overhead and the memory hints of the steps for every document
+     * that can be in a step at the same time. All steps run in the same map
+     * task, so their memory adds up.
+     *
+     * @return the container memory in MB, or 0 when no step has a memory hint (and no memory is configured)
+     */
+    public int getContainerMemoryMb() {
+        if (containerMemoryMb > 0) {
+            return containerMemoryMb;
+        }
+        int stepsMb = getStepsMemoryMb();
+        return stepsMb > 0 ? heapMb + JVM_OVERHEAD_MB + stepsMb : 0;
+    }
+
+    private int getStepsMemoryMb() {
+        int stepsMb = 0;
+        for (PipelineStep step : steps) {
+            stepsMb += step.getMemoryMb() * getWorkers(step);
+        }
+        return stepsMb;
+    }
+
+    /**
+     * Gets the number of cores a map container needs to run the pipeline,
+     * from the cpu hints of the steps. Steps without a hint count as one
+     * core per document.
+     *
+     * @return the number of cores, or 0 when no step has a cpu hint
+     */
+    public int getContainerVcores() {
+        boolean hints = false;
+        double cores = 0;
+        for (PipelineStep step : steps) {
+            hints |= step.getCpu() > 0;
+            cores += (step.getCpu() > 0 ? step.getCpu() : 1) * getWorkers(step);
+        }
+        return hints ? (int) Math.ceil(cores) : 0;
+    }
+
+    /**
+     * The number of documents a task runs through a step at the same time. A
+     * DAG pipeline runs one document at a time and a batch runs a single
+     * process.
+     */
+    private int getWorkers(PipelineStep step) {
+        if (dag || step.getBatchSize() > 1) {
+            return 1;
+        }
+        return step.getEffectiveConcurrency();
+    }
+
+    /**
+     * Gets the capacity of the queues between the steps of a fused pipeline.
+     *
+     * @return the queue size in documents
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Gets the order in which a fused pipeline emits its documents.
+     *
+     * @return the output order
+     */
+    public PipelineStep.OutputOrder getOutputOrder() {
+        return outputOrder;
+    }
+
+    /**
+     * Gets what is written to the checkpoint between the pipeline steps and
+     * the success sink.
+     *
+     * @return the checkpoint policy
+     */
+    public CheckpointPolicy getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Gets the class name of the codec used to block compress a full
+     * checkpoint.
+     *
+     * @return the codec class name
+     */
+    public String getCheckpointCodec() {
+        return checkpointCodec;
+    }
+
+    /**
+     * Check whether a manifest with the name and checksum of every successful
+     * document is written, so a later run can skip unchanged documents.
+     *
+     * @return true when a manifest is written
+     */
+    public boolean isManifest() {
+        return manifest;
+    }
+
+    /**
+     * Checkpoint policies: FULL stores all successful documents in a
+     * compressed checkpoint (and runs the sink in a separate job), METADATA
+     * only stores the name, status, size and checksum of every document and
+     * NONE stores nothing. With METADATA and NONE successes and failures are
+     * written in the same map phase.
+     */
+    public enum CheckpointPolicy {
+        FULL, METADATA, NONE
+    }
+
 }
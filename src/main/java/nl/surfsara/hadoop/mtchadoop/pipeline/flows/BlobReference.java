@@ -0,0 +1,143 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reference to a document that is stored outside of its sequence file, as a
+ * file (blob) on HDFS. The loader streams files that are too large to keep in
+ * memory to a blob and stores a reference record in the sequence file: a
+ * marker followed by the length and the path of the blob. References are
+ * resolved when the documents are read by the pipeline (see
+ * DocumentSequenceFile) and when they are unloaded.
+ */
+public final class BlobReference {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MARKER = "\u0000mtc-blob-reference\u0000".getBytes(UTF8);
+
+    private final Path path;
+    private final long length;
+
+    private BlobReference(Path path, long length) {
+        this.path = path;
+        this.length = length;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Create the record that refers to a blob.
+     *
+     * @param path   the fully qualified path of the blob
+     * @param length the length of the blob
+     * @return the value to store in the sequence file
+     */
+    public static byte[] create(Path path, long length) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.write(MARKER);
+            dos.writeLong(length);
+            dos.writeUTF(path.toString());
+            dos.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Parse a value of a sequence file.
+     *
+     * @param value the value
+     * @return the reference, or null when the value is a document
+     */
+    public static BlobReference parse(BytesWritable value) {
+        byte[] bytes = value.getBytes();
+        if (value.getLength() < MARKER.length + 8 || value.getLength() > MARKER.length + 8 + 2 + 65535) {
+            return null;
+        }
+        for (int i = 0; i < MARKER.length; i++) {
+            if (bytes[i] != MARKER[i]) {
+                return null;
+            }
+        }
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes, MARKER.length, value.getLength() - MARKER.length));
+            long length = dis.readLong();
+            return new BlobReference(new Path(dis.readUTF()), length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the blob into memory.
+     *
+     * @param conf configuration to access HDFS
+     * @return the contents of the blob
+     * @throws IOException when the blob could not be read or is too large for a byte array
+     */
+    public byte[] read(Configuration conf) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Blob is too large to keep in memory: " + path + " (" + length + " bytes)");
+        }
+        byte[] contents = new byte[(int) length];
+        FSDataInputStream is = path.getFileSystem(conf).open(path);
+        try {
+            IOUtils.readFully(is, contents);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return contents;
+    }
+
+    /**
+     * Stream the blob to an output stream.
+     *
+     * @param conf configuration to access HDFS
+     * @param out  the stream to copy the blob to
+     * @return the number of bytes copied
+     * @throws IOException when the blob could not be read or written
+     */
+    public long copy(Configuration conf, OutputStream out) throws IOException {
+        FSDataInputStream is = path.getFileSystem(conf).open(path);
+        try {
+            return IOUtils.copyLarge(is, out);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+}
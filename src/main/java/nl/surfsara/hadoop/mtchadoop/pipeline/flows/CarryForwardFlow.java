@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
+
+import cascading.flow.FlowDef;
+import cascading.pipe.Each;
+import cascading.pipe.Pipe;
+import cascading.tap.Tap;
+import cascading.tap.hadoop.Hfs;
+import cascading.tuple.Fields;
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs.IndexFilter;
+
+/**
+ * A map only flow that copies the output of a previous run for the documents
+ * that did not change, so a delta run of the pipeline produces a complete
+ * output.
+ * <p/>
+ * The inPath is the output of the previous run, the outPath receives the
+ * documents whose names are in the index of unchanged documents. The
+ * errorPath is not used.
+ */
+public class CarryForwardFlow implements Flow {
+    private String unchangedIndex;
+
+    /**
+     * @param unchangedIndex path of the DocumentIndex of the names of the unchanged documents
+     */
+    public CarryForwardFlow(String unchangedIndex) {
+        this.unchangedIndex = unchangedIndex;
+    }
+
+    @Override
+    public FlowDef getFlowDefinition(String inPath, String outPath, String errorPath) throws Exception {
+        DocumentSequenceFile docseq = new DocumentSequenceFile();
+
+        @SuppressWarnings("rawtypes")
+        Tap previousTap = new Hfs(docseq, inPath);
+        @SuppressWarnings("rawtypes")
+        Tap carriedSink = new Hfs(docseq, outPath);
+
+        Pipe previous = new Pipe("Previous output");
+        Pipe carried = new Each(new Pipe("Select unchanged files", previous), new Fields("docName"), new IndexFilter(unchangedIndex, false, null));
+
+        return FlowDef.flowDef().addSource(previous, previousTap).addTailSink(carried, carriedSink);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
+
+import cascading.flow.FlowProcess;
+import cascading.scheme.hadoop.SequenceFile;
+import cascading.tap.Tap;
+import cascading.tuple.Fields;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+
+/**
+ * Sequence file scheme for the checkpoint that writes block compressed files
+ * with the configured codec. Compression is only enabled for the tap that
+ * uses this scheme, not for the other sinks of the flow.
+ */
+@SuppressWarnings("serial")
+public class CheckpointSequenceFile extends SequenceFile {
+    private String codec;
+
+    /**
+     * @param fields the fields to store
+     * @param codec  class name of the compression codec
+     */
+    public CheckpointSequenceFile(Fields fields, String codec) {
+        super(fields);
+        this.codec = codec;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void sinkConfInit(FlowProcess<? extends Configuration> flowProcess, Tap<Configuration, RecordReader, OutputCollector> tap, Configuration conf) {
+        super.sinkConfInit(flowProcess, tap, conf);
+        conf.setBoolean("mapreduce.output.fileoutputformat.compress", true);
+        conf.set("mapreduce.output.fileoutputformat.compress.type", "BLOCK");
+        conf.set("mapreduce.output.fileoutputformat.compress.codec", codec);
+    }
+}
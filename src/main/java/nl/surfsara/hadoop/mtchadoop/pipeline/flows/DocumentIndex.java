@@ -0,0 +1,216 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A compact, exact set of document keys (e.g. document name and checksum).
+ * Each key is stored as the first 64 bits of the MD5 hash of its values in a
+ * sorted array, so a lookup is a binary search and the index takes 8 bytes
+ * per document. The index is built once on the client from tab separated
+ * text files and stored as a single file on HDFS that tasks load.
+ */
+public class DocumentIndex {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final long[] keys;
+
+    private DocumentIndex(long[] keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Check whether the index holds the key made of the given values.
+     *
+     * @param values the values of the key
+     * @return true when the key is in the index
+     */
+    public boolean contains(String... values) {
+        return Arrays.binarySearch(keys, key(values)) >= 0;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Compute the 64 bit key of a list of values.
+     *
+     * @param values the values of the key
+     * @return the key
+     */
+    public static long key(String... values) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                md5.update((byte) '\t');
+            }
+            md5.update(values[i].getBytes(UTF8));
+        }
+        byte[] digest = md5.digest();
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            key = (key << 8) | (digest[i] & 0xff);
+        }
+        return key;
+    }
+
+    /**
+     * Build an index from the part files of a tab separated text output. The
+     * first columns of each line form the key.
+     *
+     * @param fs      the file system
+     * @param path    the output directory
+     * @param fields  the number of fields in a line
+     * @param columns the number of columns in the key
+     * @return the index
+     * @throws IOException when the files could not be read
+     */
+    public static DocumentIndex fromTextFiles(FileSystem fs, String path, int fields, int columns) throws IOException {
+        return fromTextFiles(fs, path, fields, columns, -1, null);
+    }
+
+    /**
+     * Build an index from the lines of a tab separated text output that have
+     * a given value in one of their fields. The first columns of each of
+     * these lines form the key.
+     *
+     * @param fs         the file system
+     * @param path       the output directory
+     * @param fields     the number of fields in a line
+     * @param columns    the number of columns in the key
+     * @param matchField the field to match, or -1 to index all lines
+     * @param matchValue the value the field should have
+     * @return the index
+     * @throws IOException when the files could not be read
+     */
+    public static DocumentIndex fromTextFiles(FileSystem fs, String path, int fields, int columns, int matchField, String matchValue) throws IOException {
+        long[] keys = new long[1024];
+        int size = 0;
+        FileStatus[] parts = fs.globStatus(new Path(path + "/part-*"));
+        if (parts != null) {
+            for (FileStatus part : parts) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(part.getPath()), UTF8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] values = splitFields(line, fields);
+                        if (values == null || (matchField >= 0 && !values[matchField].equals(matchValue))) {
+                            continue;
+                        }
+                        if (size == keys.length) {
+                            keys = Arrays.copyOf(keys, size * 2);
+                        }
+                        keys[size++] = key(Arrays.copyOf(values, columns));
+                    }
+                } finally {
+                    IOUtils.closeQuietly(reader);
+                }
+            }
+        }
+        keys = Arrays.copyOf(keys, size);
+        Arrays.sort(keys);
+        return new DocumentIndex(keys);
+    }
+
+    /**
+     * Split a line of a tab separated output whose first field is a document
+     * name. Document names may contain tabs, the other fields do not, so the
+     * line is split from the end.
+     *
+     * @param line   the line
+     * @param fields the number of fields in the line
+     * @return the fields, or null when the line has too few fields
+     */
+    public static String[] splitFields(String line, int fields) {
+        String[] values = new String[fields];
+        int end = line.length();
+        for (int i = fields - 1; i > 0; i--) {
+            int tab = line.lastIndexOf('\t', end - 1);
+            if (tab < 0) {
+                return null;
+            }
+            values[i] = line.substring(tab + 1, end);
+            end = tab;
+        }
+        values[0] = line.substring(0, end);
+        return values;
+    }
+
+    /**
+     * Read an index written by write.
+     *
+     * @param fs   the file system
+     * @param path the index file
+     * @return the index
+     * @throws IOException when the index could not be read
+     */
+    public static DocumentIndex read(FileSystem fs, String path) throws IOException {
+        FSDataInputStream fis = fs.open(new Path(path));
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            long[] keys = new long[in.readInt()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = in.readLong();
+            }
+            return new DocumentIndex(keys);
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Write the index to a single file.
+     *
+     * @param fs   the file system
+     * @param path the index file
+     * @throws IOException when the index could not be written
+     */
+    public void write(FileSystem fs, String path) throws IOException {
+        FSDataOutputStream fos = fs.create(new Path(path), true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(keys.length);
+            for (long key : keys) {
+                out.writeLong(key);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
+
+import cascading.flow.FlowProcess;
+import cascading.scheme.SourceCall;
+import cascading.scheme.hadoop.WritableSequenceFile;
+import cascading.tuple.Fields;
+import cascading.tuple.TupleEntry;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Scheme for sequence files with <key,value> = <document name, document
+ * contents> (Text, BytesWritable). On read it emits the tuples used by the
+ * pipeline: <docName, docContent, docFailed> with docFailed set to false. On
+ * write only the docName and docContent fields are stored, so the docFailed
+ * field does not have to be inserted and stripped by separate operations.
+ * <p/>
+ * The record reader reuses its key and value for the next record; the
+ * document contents are copied once here so later operations own them (see
+ * DocumentBuffers). Documents that the loader stored as a blob on HDFS are
+ * read from their blob (see BlobReference); a document whose blob cannot be
+ * read is marked as failed and passed on as its reference. Its failed step
+ * is reported as BLOB_STEP.
+ */
+@SuppressWarnings("serial")
+public class DocumentSequenceFile extends WritableSequenceFile {
+    private static final Logger logger = Logger.getLogger(DocumentSequenceFile.class);
+    public static final Fields DOCUMENT_FIELDS = new Fields("docName", "docContent");
+    public static final Fields PIPELINE_FIELDS = new Fields("docName", "docContent", "docFailed");
+    public static final String BLOB_STEP = "blob";
+
+    public DocumentSequenceFile() {
+        super(DOCUMENT_FIELDS, Text.class, BytesWritable.class);
+        setSourceFields(PIPELINE_FIELDS);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public boolean source(FlowProcess<? extends Configuration> flowProcess, SourceCall<Object[], RecordReader> sourceCall) throws IOException {
+        if (!super.source(flowProcess, sourceCall)) {
+            return false;
+        }
+        TupleEntry entry = sourceCall.getIncomingEntry();
+        BytesWritable value = (BytesWritable) entry.getObject(1);
+        boolean failed = false;
+        byte[] contents = null;
+        BlobReference blob = BlobReference.parse(value);
+        if (blob != null) {
+            try {
+                contents = blob.read(flowProcess.getConfig());
+            } catch (IOException e) {
+                logger.error("Failed to read blob of document " + entry.getObject(0) + ": " + e);
+                failed = true;
+            }
+        }
+        entry.setObject(1, new BytesWritable(contents != null ? contents : value.copyBytes()));
+        entry.setObject(2, failed);
+        return true;
+    }
+}
@@ -16,82 +16,208 @@
 package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
 
 import cascading.flow.FlowDef;
+import cascading.operation.Function;
 import cascading.pipe.Checkpoint;
 import cascading.pipe.Each;
+import cascading.pipe.Merge;
 import cascading.pipe.Pipe;
-import cascading.scheme.hadoop.SequenceFile;
+import cascading.pipe.assembly.Retain;
+import cascading.scheme.hadoop.TextDelimited;
 import cascading.scheme.hadoop.WritableSequenceFile;
 import cascading.tap.Tap;
 import cascading.tap.hadoop.Hfs;
+import cascading.tap.hadoop.PartitionTap;
+import cascading.tap.partition.DelimitedPartition;
 import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
 import nl.surfsara.hadoop.mtchadoop.pipeline.PipelineLayout;
 import nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs.*;
 import nl.surfsara.hadoop.mtchadoop.pipeline.modules.PipelineStep;
-import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * An implementation of pipeline execution as a Cascading Flow.
  * <p/>
  * The steps in the pipeline are described in the PipelineLayout class.
  * <p/>
  * Files are read from sequence files(s) on HDFS and inserted into the tuple
- * stream as the following tuples: <document name, document contents>. The first
- * function inserts the document failed field for each tuple: <document name,
- * document contents, document failed> The next functions execute the pipeline
- * on the files contents field. Documents where docFailed has been set to
- * true will not be processed by subsequent modules. Finally, the stream is
- * split and failed and successful documents are stored in separate sinks on
- * HDFS (again as sequence files with <key,value> = <document name, document
- * contents>
+ * stream by the DocumentSequenceFile scheme as the following tuples: <document
+ * name, document contents, document failed>. The functions execute the pipeline
+ * on the files contents field (one function per step, or a single function
+ * running all steps when the layout is fused or its steps declare dependencies
+ * on each other). After each step the stream is
+ * split: documents where docFailed has been set to true are not processed by
+ * subsequent modules but go straight to the failed sink, and a report sink
+ * (errorPath_steps) records the step in which each of them failed as
+ * <document name, step name>; documents whose blob could not be read are
+ * reported with the step name "blob". The successful documents pass a checkpoint
+ * and are stored in a separate sink. The checkpoint is either a compressed
+ * copy of the successful documents, or (so that all sinks are written in the
+ * same map phase) only a metadata record <name, status, size, checksum> for
+ * every document or nothing at all. A restarted run skips the documents that
+ * succeeded according to the metadata checkpoint of the previous run.
+ * <p/>
+ * Optionally a manifest <document name, checksum of the input> of all
+ * successful documents is written to outPath_manifest. In a delta run the
+ * documents that are in the manifest of the previous run with the same
+ * checksum are not processed (see CarryForwardFlow).
+ * <p/>
+ * When the layout has a size threshold, documents larger than the threshold
+ * are not processed but written to outPath_oversized, each in a directory of
+ * its own, so they can be processed in a separate run with one document per
+ * task. The success and failed sinks are sequence files on HDFS with
+ * <key,value> = <document name, document contents>.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class PipelineFlow implements Flow {
     private PipelineLayout pl;
+    private String restartIndex;
+    private String deltaIndex;
 
     public PipelineFlow(PipelineLayout pl) {
         this.pl = pl;
     }
 
+    /**
+     * Restart from a previous run: documents recorded as successful in its
+     * metadata checkpoint are not processed again.
+     *
+     * @param restartIndex path of the DocumentIndex of the names of the documents that succeeded in the previous run
+     */
+    public void setRestartIndex(String restartIndex) {
+        this.restartIndex = restartIndex;
+    }
+
+    /**
+     * Only process documents that are new or changed since a previous run.
+     * Documents whose name and checksum are in the index (built from the
+     * manifest of the previous run) are not processed; they are written to
+     * outPath_unchanged so their previous output can be carried forward.
+     *
+     * @param deltaIndex path of the DocumentIndex of the previous manifest
+     */
+    public void setDeltaIndex(String deltaIndex) {
+        this.deltaIndex = deltaIndex;
+    }
+
     @Override
     public FlowDef getFlowDefinition(String inPath, String outPath, String errorPath) throws Exception {
-        Fields pipelineFields = new Fields("docName", "docContent", "docFailed");
-        Fields docFields = new Fields("docName", "docContent");
+        Fields pipelineFields = DocumentSequenceFile.PIPELINE_FIELDS;
+        Fields failedFields = new Fields("docName", "docContent", "failedStep");
+        Fields manifestFields = new Fields("docName", "docChecksum");
+        boolean manifest = pl.isManifest() || deltaIndex != null;
 
-        //SequenceFile seq = new SequenceFile(docFields);
-        WritableSequenceFile inseq = new WritableSequenceFile(docFields, Text.class, BytesWritable.class);
+        DocumentSequenceFile docseq = new DocumentSequenceFile();
 
         @SuppressWarnings("rawtypes")
-        Tap docTap = new Hfs(inseq, inPath);
+        Tap docTap = new Hfs(docseq, inPath);
 
-        Pipe insertField = new Each("Insert docFailed", new InsertField(), Fields.RESULTS);
+        Pipe documents = new Pipe("Documents");
 
-        // Build pipeline from steps
-        Pipe prevPipe = insertField;
-        for (PipelineStep ps : pl.getSteps()) {
-            Pipe currentPipe = new Each(new Pipe(ps.getName(), prevPipe), pipelineFields, new RunModuleFunction(ps), Fields.RESULTS);
-            prevPipe = currentPipe;
+        // Build pipeline from steps; documents that fail leave the pipeline right after the failing step
+        List<Pipe> failedPipes = new ArrayList<Pipe>();
+        Pipe prevPipe = documents;
+        // Documents whose blob could not be read fail before the first step
+        Pipe unreadable = new Each(new Pipe("Select files whose blob could not be read", prevPipe), pipelineFields, new SuccessFilter());
+        failedPipes.add(new Each(unreadable, pipelineFields, new FailedStepField(DocumentSequenceFile.BLOB_STEP), Fields.RESULTS));
+        prevPipe = new Each(new Pipe("Select files that were read", prevPipe), pipelineFields, new FailedFilter());
+        if (restartIndex != null) {
+            prevPipe = new Each(new Pipe("Skip files that succeeded in the previous run", prevPipe), new Fields("docName"), new IndexFilter(restartIndex, true, "Documents skipped (previous success)"));
+        }
+        // The checksum of the input is carried along (the steps swap only their own fields) for the manifest
+        if (manifest) {
+            prevPipe = new Each(new Pipe("Checksum files", prevPipe), new Fields("docContent"), new DocumentChecksum(), Fields.ALL);
+        }
+        Pipe oversizedDocs = null;
+        long threshold = pl.getOversizedThreshold();
+        if (threshold > 0) {
+            Pipe oversized = new Each(new Pipe("Select oversized files", prevPipe), new Fields("docContent"), new SizeFilter(threshold, false, null));
+            oversized = new Each(oversized, new Fields("docName"), new DocumentPartition(), Fields.ALL);
+            oversizedDocs = new Retain(oversized, DocumentSequenceFile.DOCUMENT_FIELDS.append(new Fields("docPartition")));
+            prevPipe = new Each(new Pipe("Select files of normal size", prevPipe), new Fields("docContent"), new SizeFilter(threshold, true, "Documents oversized (deferred)"));
+        }
+        Pipe unchangedDocs = null;
+        if (deltaIndex != null) {
+            Pipe unchanged = new Each(new Pipe("Select files that did not change", prevPipe), manifestFields, new IndexFilter(deltaIndex, false, null));
+            unchangedDocs = new Retain(unchanged, manifestFields);
+            prevPipe = new Each(new Pipe("Select files that are new or changed", prevPipe), manifestFields, new IndexFilter(deltaIndex, true, "Documents unchanged (skipped)"));
+        }
+        if (pl.isFused() || pl.isDag()) {
+            Function<Tuple> run = pl.isDag() ? new RunDagFunction(pl.getSteps()) : new RunPipelineFunction(pl.getSteps(), pl.getQueueSize(), pl.getOutputOrder());
+            Pipe pipeline = new Each(new Pipe("Pipeline", prevPipe), pipelineFields, run, Fields.SWAP);
+            Pipe failedDocs = new Each(new Pipe("Select files that failed in the pipeline", pipeline), pipelineFields, new SuccessFilter());
+            failedPipes.add(new Retain(failedDocs, failedFields));
+            Pipe succesDocs = new Each(new Pipe("Select files that passed the pipeline", pipeline), pipelineFields, new FailedFilter());
+            prevPipe = new Retain(succesDocs, manifest ? pipelineFields.append(new Fields("docChecksum")) : pipelineFields);
+        } else {
+            for (PipelineStep ps : pl.getSteps()) {
+                Pipe currentPipe = new Each(new Pipe(ps.getName(), prevPipe), pipelineFields, new RunModuleFunction(ps), Fields.SWAP);
+                Pipe failedDocs = new Each(new Pipe("Select files that failed in " + ps.getName(), currentPipe), pipelineFields, new SuccessFilter());
+                failedPipes.add(new Each(failedDocs, pipelineFields, new FailedStepField(ps.getName()), Fields.RESULTS));
+                prevPipe = new Each(new Pipe("Select files that passed " + ps.getName(), currentPipe), pipelineFields, new FailedFilter());
+            }
+        }
+        Checkpoint checkPoint = null;
+        if (pl.getCheckpoint() == PipelineLayout.CheckpointPolicy.FULL) {
+            checkPoint = new Checkpoint("Checkpoint", prevPipe);
+            prevPipe = checkPoint;
         }
-        Checkpoint checkPoint = new Checkpoint("Checkpoint", prevPipe);
 
-        Pipe succesDocs = new Each(new Pipe("Select files that were processed successfully", checkPoint), pipelineFields, new FailedFilter());
-        Pipe sstrip = new Each(new Pipe("Strip docFailed from successful files", succesDocs), pipelineFields, new StripField(), Fields.RESULTS);
+        // The document scheme only writes docName and docContent
+        Pipe successDocs = new Pipe("Files that were processed successfully", prevPipe);
 
-        Pipe failedDocs = new Each(new Pipe("Select files that failed during processing", checkPoint), pipelineFields, new SuccessFilter());
-        Pipe fstrip = new Each(new Pipe("Strip docFailed from failed files", failedDocs), pipelineFields, new StripField(), Fields.RESULTS);
+        Pipe failedDocs = failedPipes.size() == 1 ? failedPipes.get(0) : new Merge("Files that failed during processing", failedPipes.toArray(new Pipe[failedPipes.size()]));
+        Pipe fdocs = new Pipe("Failed files", failedDocs);
+        Pipe freport = new Retain(new Pipe("Report failed steps", failedDocs), new Fields("docName", "failedStep"));
 
-        WritableSequenceFile outseq = new WritableSequenceFile(docFields, Text.class, BytesWritable.class);
-        SequenceFile checkPointSeq = new SequenceFile(Fields.ALL);
+        WritableSequenceFile reportseq = new WritableSequenceFile(new Fields("docName", "failedStep"), Text.class, Text.class);
+        CheckpointSequenceFile checkPointSeq = new CheckpointSequenceFile(Fields.ALL, pl.getCheckpointCodec());
+        TextDelimited metadataseq = new TextDelimited(new Fields("docName", "docStatus", "docSize", "docChecksum"), "\t");
 
         @SuppressWarnings("rawtypes")
-        Tap successSink = new Hfs(outseq, outPath);
+        Tap successSink = new Hfs(docseq, outPath);
         @SuppressWarnings("rawtypes")
         Tap checkpointSink = new Hfs(checkPointSeq, outPath + "_checkpoint");
         @SuppressWarnings("rawtypes")
-        Tap failedSink = new Hfs(outseq, errorPath);
+        Tap failedSink = new Hfs(docseq, errorPath);
+        @SuppressWarnings("rawtypes")
+        Tap reportSink = new Hfs(reportseq, errorPath + "_steps");
 
-        return FlowDef.flowDef().addSource(insertField, docTap).addCheckpoint(checkPoint, checkpointSink).addTailSink(sstrip, successSink).addTailSink(fstrip, failedSink);
+        FlowDef flowDef = FlowDef.flowDef().addSource(documents, docTap).addTailSink(successDocs, successSink).addTailSink(fdocs, failedSink).addTailSink(freport, reportSink);
+        if (oversizedDocs != null) {
+            @SuppressWarnings("rawtypes")
+            Tap oversizedSink = new PartitionTap(new Hfs(docseq, outPath + "_oversized"), new DelimitedPartition(new Fields("docPartition")));
+            flowDef.addTailSink(new Pipe("Oversized files", oversizedDocs), oversizedSink);
+        }
+        if (checkPoint != null) {
+            flowDef.addCheckpoint(checkPoint, checkpointSink);
+        }
+        if (pl.getCheckpoint() == PipelineLayout.CheckpointPolicy.METADATA) {
+            Pipe successMetadata = new Each(new Pipe("Describe successful files", prevPipe), DocumentSequenceFile.DOCUMENT_FIELDS, new DocumentMetadata(), Fields.RESULTS);
+            Pipe failedMetadata = new Each(new Pipe("Describe failed files", failedDocs), failedFields, new DocumentMetadata(), Fields.RESULTS);
+            Pipe metadata = new Merge("Checkpoint metadata", successMetadata, failedMetadata);
+            @SuppressWarnings("rawtypes")
+            Tap metadataSink = new Hfs(metadataseq, outPath + "_checkpoint");
+            flowDef.addTailSink(metadata, metadataSink);
+        }
+        if (manifest) {
+            TextDelimited manifestseq = new TextDelimited(manifestFields, "\t");
+            Pipe manifestDocs = new Retain(new Pipe("Manifest of successful files", prevPipe), manifestFields);
+            if (unchangedDocs != null) {
+                manifestDocs = new Merge("Manifest", manifestDocs, new Pipe("Manifest of unchanged files", unchangedDocs));
+                @SuppressWarnings("rawtypes")
+                Tap unchangedSink = new Hfs(manifestseq, outPath + "_unchanged");
+                flowDef.addTailSink(new Pipe("Unchanged files", unchangedDocs), unchangedSink);
+            }
+            @SuppressWarnings("rawtypes")
+            Tap manifestSink = new Hfs(manifestseq, outPath + "_manifest");
+            flowDef.addTailSink(manifestDocs, manifestSink);
+        }
+        return flowDef;
     }
 
 }
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * Ownership rules for the document buffers in the tuple stream.
+ * <p/>
+ * A record reader reuses its BytesWritable for the next record, so the
+ * source scheme (DocumentSequenceFile) detaches each document once by copying
+ * it into a buffer of exactly its length. From then on every operation emits buffers
+ * that belong to the tuple alone: the output array of a module, or the input
+ * passed on unchanged. Operations that keep a document beyond the call to
+ * operate (e.g. to run a module on it) take the backing array instead of
+ * copying it.
+ */
+final class DocumentBuffers {
+
+    private DocumentBuffers() {
+    }
+
+    /**
+     * Take the document out of a buffer owned by the tuple. The backing array
+     * is returned when it holds exactly the document, otherwise the document
+     * is copied.
+     *
+     * @param bw the buffer
+     * @return an array holding exactly the document
+     */
+    static byte[] take(BytesWritable bw) {
+        byte[] bytes = bw.getBytes();
+        if (bytes.length == bw.getLength()) {
+            return bytes;
+        }
+        return bw.copyBytes();
+    }
+}
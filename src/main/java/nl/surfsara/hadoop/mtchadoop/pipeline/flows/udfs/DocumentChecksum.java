@@ -21,39 +21,30 @@ import cascading.operation.Function;
 import cascading.operation.FunctionCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
-import cascading.tuple.TupleEntry;
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.MD5Hash;
 
 /**
- * Function that insert the docFailed field for each tuple in the tuple stream. This field is used to flag
- * failed processing during pipeline execution.
+ * Function that computes the MD5 checksum of the contents of a document, used
+ * to recognize documents that did not change since a previous run.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
 @SuppressWarnings("serial")
-public class InsertField extends BaseOperation<Tuple> implements Function<Tuple> {
+public class DocumentChecksum extends BaseOperation<Tuple> implements Function<Tuple> {
 
-    // Eats: <docName, docContent>
-    // Emits: <docName, docContent, docFailed>
-    public InsertField() {
-        super(2, new Fields("docName", "docContent", "docFailed"));
-    }
-
-    public InsertField(Fields fields) {
-        super(2, fields);
+    // Eats: <docContent>
+    // Emits: <docChecksum>
+    public DocumentChecksum() {
+        super(1, new Fields("docChecksum"));
     }
 
     @SuppressWarnings("rawtypes")
     @Override
     public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
-        TupleEntry args = functionCall.getArguments();
-        String docName = args.getString("docName");
-        byte[] docContent = ((BytesWritable)args.getObject("docContent")).copyBytes();
+        BytesWritable docContent = (BytesWritable) functionCall.getArguments().getObject("docContent");
         Tuple result = new Tuple();
-        result.add(new Text(docName));
-        result.add(new BytesWritable(docContent));
-        result.add(false);
+        result.add(MD5Hash.digest(docContent.getBytes(), 0, docContent.getLength()).toString());
         functionCall.getOutputCollector().add(result);
     }
 
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MD5Hash;
+
+/**
+ * Function that describes a processed document for the metadata checkpoint:
+ * its name, status, size and the MD5 checksum of its contents. The status is
+ * "success" for successful documents and "failed:" followed by the name of
+ * the failed step for failed documents.
+ */
+@SuppressWarnings("serial")
+public class DocumentMetadata extends BaseOperation<Tuple> implements Function<Tuple> {
+    public static final String SUCCESS = "success";
+    public static final String FAILED = "failed:";
+
+    // Eats: <docName, docContent> or <docName, docContent, failedStep>
+    // Emits: <docName, docStatus, docSize, docChecksum>
+    public DocumentMetadata() {
+        super(new Fields("docName", "docStatus", "docSize", "docChecksum"));
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
+        TupleEntry args = functionCall.getArguments();
+        BytesWritable docContent = (BytesWritable) args.getObject("docContent");
+        String status = SUCCESS;
+        if (args.getFields().size() > 2) {
+            status = FAILED + args.getString("failedStep");
+        }
+        Tuple result = new Tuple();
+        result.add(args.getString("docName"));
+        result.add(status);
+        result.add(docContent.getLength());
+        result.add(MD5Hash.digest(docContent.getBytes(), 0, docContent.getLength()).toString());
+        functionCall.getOutputCollector().add(result);
+    }
+
+}
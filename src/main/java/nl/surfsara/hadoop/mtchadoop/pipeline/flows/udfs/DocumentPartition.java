@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.DocumentIndex;
+
+/**
+ * Function that derives a partition name from the name of a document, used
+ * to write every document to a directory of its own. The name is hashed
+ * because document names may contain characters that are not allowed in a
+ * path.
+ */
+@SuppressWarnings("serial")
+public class DocumentPartition extends BaseOperation<Tuple> implements Function<Tuple> {
+
+    // Eats: <docName>
+    // Emits: <docPartition>
+    public DocumentPartition() {
+        super(1, new Fields("docPartition"));
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
+        Tuple result = new Tuple();
+        result.add(String.format("%016x", DocumentIndex.key(functionCall.getArguments().getString("docName"))));
+        functionCall.getOutputCollector().add(result);
+    }
+
+}
@@ -22,36 +22,34 @@ import cascading.operation.FunctionCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
-import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 
 /**
- * Function that strips the document failed (docFailed) field from the stream when it is no longer needed. 
+ * Function that replaces the document failed (docFailed) field of failed
+ * documents with the name of the step in which they failed. The document
+ * contents are passed on as is.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
 @SuppressWarnings("serial")
-public class StripField extends BaseOperation<Tuple> implements Function<Tuple> {
+public class FailedStepField extends BaseOperation<Tuple> implements Function<Tuple> {
+    private String stepName;
 
     // Eats: <docName, docContent, docFailed>
-    // Emits: <docName, docContent>
-    public StripField() {
-        super(3, new Fields("docName", "docContent"));
-    }
-
-    public StripField(Fields fields) {
-        super(3, fields);
+    // Emits: <docName, docContent, failedStep>
+    public FailedStepField(String stepName) {
+        super(3, new Fields("docName", "docContent", "failedStep"));
+        this.stepName = stepName;
     }
 
     @SuppressWarnings("rawtypes")
     @Override
     public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
         TupleEntry args = functionCall.getArguments();
-        String docName = args.getString("docName");
-        byte[] docContent = ((BytesWritable)args.getObject("docContent")).copyBytes();
         Tuple result = new Tuple();
-        result.add(new Text(docName));
-        result.add(new BytesWritable(docContent));
+        result.add(args.getObject("docName"));
+        result.add(args.getObject("docContent"));
+        result.add(new Text(stepName));
         functionCall.getOutputCollector().add(result);
     }
 
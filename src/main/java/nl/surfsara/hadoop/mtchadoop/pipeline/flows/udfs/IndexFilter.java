@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Filter;
+import cascading.operation.FilterCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.TupleEntry;
+import nl.surfsara.hadoop.mtchadoop.pipeline.flows.DocumentIndex;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleConstants;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Filter that looks up the argument values of each tuple in a DocumentIndex
+ * and removes either the tuples that are in the index or those that are not.
+ */
+@SuppressWarnings("serial")
+public class IndexFilter extends BaseOperation<DocumentIndex> implements Filter<DocumentIndex> {
+    private static final Logger logger = Logger.getLogger(IndexFilter.class);
+    private String indexPath;
+    private boolean removeIndexed;
+    private String counter;
+
+    /**
+     * @param indexPath     path of the index file on HDFS
+     * @param removeIndexed remove tuples that are in the index (true) or those that are not (false)
+     * @param counter       name of the counter for removed tuples, or null
+     */
+    public IndexFilter(String indexPath, boolean removeIndexed, String counter) {
+        this.indexPath = indexPath;
+        this.removeIndexed = removeIndexed;
+        this.counter = counter;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void prepare(FlowProcess flowProcess, OperationCall<DocumentIndex> call) {
+        try {
+            DocumentIndex index = DocumentIndex.read(FileSystem.get((Configuration) flowProcess.getConfigCopy()), indexPath);
+            logger.info("Loaded index of " + index.size() + " documents from: " + indexPath);
+            call.setContext(index);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read index: " + indexPath, e);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public boolean isRemove(FlowProcess flowProcess, FilterCall<DocumentIndex> filterCall) {
+        TupleEntry args = filterCall.getArguments();
+        String[] values = new String[args.getFields().size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args.getString(i);
+        }
+        boolean remove = filterCall.getContext().contains(values) == removeIndexed;
+        if (remove && counter != null) {
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, counter, 1);
+        }
+        return remove;
+    }
+}
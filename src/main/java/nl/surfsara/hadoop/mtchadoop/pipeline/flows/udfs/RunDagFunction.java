@@ -0,0 +1,226 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleConstants;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleExecutorService;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.PipelineStep;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ScratchManager;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.AllocationMeter;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Function that executes a pipeline whose steps form a directed acyclic graph
+ * (see the dependsOn field of the layout) in a single operator. A step is
+ * started as soon as all steps it depends on have finished, so independent
+ * branches run at the same time on the same document. A step without
+ * dependencies processes the input document; a step with one dependency
+ * processes the output of that step. A merge step (more than one dependency)
+ * processes the output of its first dependency and gets the outputs of all
+ * its dependencies (see Module.setDependencyOutputs). The output of the
+ * pipeline is the output of its last step.
+ * <p/>
+ * When a step fails no new steps are started for the document; it is emitted
+ * with its original contents and the name of the step that failed.
+ */
+@SuppressWarnings("serial")
+public class RunDagFunction extends BaseOperation<Tuple> implements Function<Tuple> {
+    private static final Logger logger = Logger.getLogger(RunDagFunction.class);
+    private ArrayList<PipelineStep> steps;
+    private ModuleExecutorService mes;
+    private String localDir;
+    private Map<String, StepRunner> runners;
+    private ExecutorService branches;
+    private AllocationMeter allocationMeter;
+
+    // Eats: <docName, docContent, docFailed>
+    // Emits: <docName, docContent, docFailed, failedStep>
+    public RunDagFunction(ArrayList<PipelineStep> steps) {
+        super(3, new Fields("docName", "docContent", "docFailed", "failedStep"));
+        this.steps = steps;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
+        String[] taskId = flowProcess.getStringProperty("mapred.task.id").split("_");
+        String scratchName = ScratchManager.SCRATCH_PREFIX + taskId[3] + "-" + taskId[4].substring(1) + "/" + UUID.randomUUID().toString();
+        localDir = flowProcess.getStringProperty("job.local.dir") + "/" + scratchName;
+        new File(localDir).mkdirs();
+        allocationMeter = new AllocationMeter();
+        mes = new ModuleExecutorService();
+        mes.setAllocationMeter(allocationMeter);
+        runners = new LinkedHashMap<String, StepRunner>();
+        for (PipelineStep step : steps) {
+            if (step.getBatchSize() > 1) {
+                logger.warn("Batch mode is not supported in a DAG pipeline; ignoring it for pipelineStep: " + step.getName());
+            }
+            runners.put(step.getName(), new StepRunner(step, localDir, scratchName, mes, (Configuration) flowProcess.getConfigCopy()));
+        }
+        branches = Executors.newCachedThreadPool();
+        logger.info("Started DAG pipeline of " + steps.size() + " steps.");
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void cleanup(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
+        super.cleanup(flowProcess, operationCall);
+        logger.info("Task, branch and module threads of the DAG pipeline " + allocationMeter.getSummary());
+        branches.shutdownNow();
+        for (StepRunner runner : runners.values()) {
+            runner.close(flowProcess);
+        }
+        mes.destroy();
+        long killed = mes.getSubprocessManager().getKilled();
+        if (killed > 0) {
+            logger.info("Killed " + killed + " orphaned subprocess(es) for the DAG pipeline.");
+        }
+        flowProcess.increment(ModuleConstants.COUNTER_GROUP, "Orphaned subprocesses killed", killed);
+        FileUtils.deleteQuietly(new File(localDir));
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void operate(FlowProcess flowProcess, FunctionCall functionCall) {
+        TupleEntry args = functionCall.getArguments();
+        String docName = args.getString("docName");
+        byte[] content = DocumentBuffers.take((BytesWritable) args.getObject("docContent"));
+        boolean failed = args.getBoolean("docFailed");
+        String failedStep = null;
+        byte[] result = content;
+        if (!failed) {
+            logger.info("Processing: " + docName);
+            flowProcess.setStatus("Processing: " + docName);
+            allocationMeter.document();
+            Map<String, byte[]> outputs = new HashMap<String, byte[]>();
+            failedStep = runSteps(docName, content, outputs, flowProcess);
+            if (failedStep != null) {
+                failed = true;
+            } else {
+                result = outputs.get(steps.get(steps.size() - 1).getName());
+            }
+        }
+        Tuple tuple = new Tuple();
+        tuple.add(new Text(docName));
+        tuple.add(new BytesWritable(result));
+        tuple.add(failed);
+        tuple.add(new Text(failedStep == null ? "" : failedStep));
+        functionCall.getOutputCollector().add(tuple);
+    }
+
+    /**
+     * Run all steps on a document. Steps whose dependencies have finished are
+     * submitted to the branch executor; the task thread waits for the next
+     * step to finish and then submits the steps that have become ready.
+     *
+     * @param outputs receives the output of every step that succeeded, keyed on step name
+     * @return the name of the first step that failed, or null when all steps succeeded
+     */
+    @SuppressWarnings("rawtypes")
+    private String runSteps(final String docName, final byte[] content, Map<String, byte[]> outputs, FlowProcess flowProcess) {
+        CompletionService<StepResult> completion = new ExecutorCompletionService<StepResult>(branches);
+        List<PipelineStep> waiting = new ArrayList<PipelineStep>(steps);
+        String failedStep = null;
+        int running = 0;
+        while (true) {
+            if (failedStep == null) {
+                for (int i = 0; i < waiting.size(); i++) {
+                    final PipelineStep step = waiting.get(i);
+                    if (!outputs.keySet().containsAll(step.getDependsOn())) {
+                        continue;
+                    }
+                    waiting.remove(i--);
+                    final byte[] input = step.getDependsOn().isEmpty() ? content : outputs.get(step.getDependsOn().get(0));
+                    final Map<String, byte[]> dependencies = new LinkedHashMap<String, byte[]>();
+                    if (step.getDependsOn().size() > 1) {
+                        for (String dependency : step.getDependsOn()) {
+                            dependencies.put(dependency, outputs.get(dependency));
+                        }
+                    }
+                    final StepRunner runner = runners.get(step.getName());
+                    completion.submit(allocationMeter.wrap(new Callable<StepResult>() {
+                        @Override
+                        public StepResult call() throws Exception {
+                            return new StepResult(step.getName(), runner.run(docName, input, dependencies));
+                        }
+                    }));
+                    running++;
+                }
+            }
+            if (running == 0) {
+                return failedStep;
+            }
+            StepResult done;
+            try {
+                done = completion.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while running the DAG pipeline on document: " + docName, e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to run the DAG pipeline on document: " + docName, e.getCause());
+            }
+            running--;
+            flowProcess.keepAlive();
+            if (done.output == null) {
+                // Steps that are already running finish, but no dependants are started
+                if (failedStep == null) {
+                    failedStep = done.step;
+                }
+            } else {
+                outputs.put(done.step, done.output);
+            }
+        }
+    }
+
+    /**
+     * The output of a step, or null when it failed.
+     */
+    private static class StepResult {
+        private final String step;
+        private final byte[] output;
+
+        private StepResult(String step, byte[] output) {
+            this.step = step;
+            this.output = output;
+        }
+    }
+}
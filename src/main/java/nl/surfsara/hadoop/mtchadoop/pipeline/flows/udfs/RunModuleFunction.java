@@ -23,21 +23,42 @@ import cascading.operation.OperationCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.BatchBashModule;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.GenericBashModule;
 import nl.surfsara.hadoop.mtchadoop.pipeline.modules.Module;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleConstants;
 import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleExecutorService;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModulePool;
 import nl.surfsara.hadoop.mtchadoop.pipeline.modules.PipelineStep;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ResultCache;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ScratchManager;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.AllocationMeter;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.StepTimings;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Function that executes the modules run script in a separate Thread.
+ * Function that executes the modules run script in a separate Thread. Up to
+ * the concurrency of the step documents are run at the same time; results
+ * are emitted in input or completion order as configured for the step.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
@@ -47,8 +68,20 @@ public class RunModuleFunction extends BaseOperation<Tuple> implements Function<
     private ModuleExecutorService mes;
     private PipelineStep pipelineStep;
     private String localDir;
+    private ScratchManager scratch;
+    private ModulePool pool;
+    private boolean batching;
+    private List<Module> batch;
+    private long batchStart;
+    private int concurrency;
+    private boolean completionOrder;
+    private LinkedList<InFlight> pending;
+    private BlockingQueue<FutureTask<Module>> completed;
+    private AllocationMeter allocationMeter;
+    private ResultCache cache;
+    private StepTimings timings;
 
-    // Eats: <docName, docContent, docFailed>
+    // Eats: <docName, docContent, docFailed> (only documents that have not failed, see PipelineFlow)
     // Emits: <docName, docContent, docFailed>
     public RunModuleFunction(PipelineStep pipelineStep) {
         super(3, new Fields("docName", "docContent", "docFailed"));
@@ -64,18 +97,75 @@ public class RunModuleFunction extends BaseOperation<Tuple> implements Function<
     @Override
     public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
         String[] taskId = flowProcess.getStringProperty("mapred.task.id").split("_");
-        localDir = flowProcess.getStringProperty("job.local.dir");
-        localDir = localDir + "/mo-" + taskId[3] + "-" + taskId[4].substring(1) + "/" + UUID.randomUUID().toString();
+        String scratchName = ScratchManager.SCRATCH_PREFIX + taskId[3] + "-" + taskId[4].substring(1) + "/" + UUID.randomUUID().toString();
+        localDir = flowProcess.getStringProperty("job.local.dir") + "/" + scratchName;
         File f = new File(localDir);
         f.mkdirs();
+        long memoryQuota = pipelineStep.getScratchMemoryMb() * 1024L * 1024L;
+        scratch = new ScratchManager(localDir + "/docs", memoryQuota > 0 ? ScratchManager.getMemoryRoot(scratchName) : null, memoryQuota);
+        allocationMeter = new AllocationMeter();
         mes = new ModuleExecutorService();
+        mes.setAllocationMeter(allocationMeter);
+        batching = pipelineStep.getBatchSize() > 1;
+        if (batching && !GenericBashModule.class.isAssignableFrom(pipelineStep.getModuleClass())) {
+            logger.warn("Batch mode is only supported for bash modules; disabling it for pipelineStep: " + pipelineStep.getName());
+            batching = false;
+        }
+        // A batch holds an instance for each of its documents but runs a single process
+        pool = new ModulePool(pipelineStep, localDir, mes.getSubprocessManager(), batching ? 0 : pipelineStep.getMaxConcurrency());
+        batch = new ArrayList<Module>();
+        concurrency = pipelineStep.getEffectiveConcurrency();
+        if (batching && concurrency > 1) {
+            logger.warn("Concurrent mode is not supported in batch mode; ignoring it for pipelineStep: " + pipelineStep.getName());
+            concurrency = 1;
+        }
+        completionOrder = pipelineStep.getOutputOrder() == PipelineStep.OutputOrder.COMPLETION;
+        pending = new LinkedList<InFlight>();
+        completed = new LinkedBlockingQueue<FutureTask<Module>>();
+        timings = new StepTimings(pipelineStep.getName());
+        if (pipelineStep.isCache()) {
+            try {
+                cache = new ResultCache(pipelineStep, (Configuration) flowProcess.getConfigCopy());
+            } catch (IOException e) {
+                logger.error("Failed to open result cache for pipelineStep: " + pipelineStep.getName() + "; running without it: " + e);
+            }
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Override
+    public void flush(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
+        TupleEntryCollector collector = ((FunctionCall) operationCall).getOutputCollector();
+        if (batching && !batch.isEmpty()) {
+            runBatch(collector);
+        }
+        if (!pending.isEmpty()) {
+            drain(collector, 0);
+        }
+        super.flush(flowProcess, operationCall);
     }
 
     @SuppressWarnings("rawtypes")
     @Override
     public void cleanup(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
         super.cleanup(flowProcess, operationCall);
+        logger.info("Task and module threads of pipelineStep: " + pipelineStep.getName() + " " + allocationMeter.getSummary());
+        timings.report(flowProcess);
+        if (cache != null) {
+            logger.info("Result cache of pipelineStep: " + pipelineStep.getName() + ": " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.getEvictions() + " evictions.");
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, pipelineStep.getName() + " cache hits", cache.getHits());
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, pipelineStep.getName() + " cache misses", cache.getMisses());
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, pipelineStep.getName() + " cache evictions", cache.getEvictions());
+        }
+        pool.close();
         mes.destroy();
+        long killed = mes.getSubprocessManager().getKilled();
+        if (killed > 0) {
+            logger.info("Killed " + killed + " orphaned subprocess(es) for pipelineStep: " + pipelineStep.getName());
+        }
+        flowProcess.increment(ModuleConstants.COUNTER_GROUP, "Orphaned subprocesses killed", killed);
+        scratch.close();
+        FileUtils.deleteQuietly(new File(localDir));
     }
 
     @SuppressWarnings("rawtypes")
@@ -86,44 +176,253 @@ public class RunModuleFunction extends BaseOperation<Tuple> implements Function<
         String docName = args.getString("docName");
         logger.info("Processing: " + docName);
         flowProcess.setStatus("Processing: " + docName);
-        Tuple result = operate(args);
-        functionCall.getOutputCollector().add(result);
+        allocationMeter.document();
+        if (batching) {
+            addToBatch(args, functionCall.getOutputCollector());
+        } else {
+            submit(args);
+            drain(functionCall.getOutputCollector(), concurrency - 1);
+        }
     }
 
-    protected Tuple operate(TupleEntry args) {
-        Tuple result = new Tuple();
+    /**
+     * Adds a document to the current batch. The batch is run when it is full
+     * or when, at the arrival of a document, its first document has waited
+     * longer than the batch wait time. Cascading only calls the function with
+     * a new document, so a batch that is not full is otherwise run at the end
+     * of the input.
+     */
+    protected void addToBatch(TupleEntry args, TupleEntryCollector collector) {
         String docName = args.getString("docName");
-        byte[] docContent = ((BytesWritable) args.getObject("docContent")).copyBytes();
-        boolean docFailed = args.getBoolean("docFailed");
-        if (docFailed) {
-            logger.info("Skipping pipelineStep: " + pipelineStep.getName() + " for document: " + docName + " because of previous failure...");
-            result.add(new Text(docName));
-            result.add(new BytesWritable(docContent));
-            result.add(true);
-        } else {
-            try {
-                Module instance = pipelineStep.getInstance();
-                instance.setDocumentKey(docName);
-                instance.setInputDocument(docContent);
-                instance.setLocalDirectory(localDir);
-                long tstart = System.currentTimeMillis();
-                FutureTask<Module> executeModule = mes.executeModule(instance);
-                Module outputInstance = executeModule.get(pipelineStep.getTimeout(), TimeUnit.MILLISECONDS);
-                byte[] outputDocument = outputInstance.getOutputDocument();
-                boolean outputDocFailed = outputInstance.hasFailed();
-                long tend = System.currentTimeMillis();
-                logger.info("Applying pipelineStep: " + pipelineStep.getName() + " on document: " + docName + " took " + (tend - tstart) + " ms.");
-                logger.info("Module " + pipelineStep.getName() + " result: " + !outputDocFailed + " on document: " + docName);
-                result.add(new Text(docName));
-                result.add(new BytesWritable(outputDocument));
-                result.add(outputDocFailed);
-            } catch (Exception e) {
-                result.add(new Text(docName));
-                result.add(new BytesWritable(docContent));
-                result.add(true);
-                logger.error(e);
+        byte[] docContent = DocumentBuffers.take((BytesWritable) args.getObject("docContent"));
+        if (cache != null) {
+            byte[] cached = cache.get(cache.key(docContent));
+            if (cached != null) {
+                logger.info("Module " + pipelineStep.getName() + " result: true on document: " + docName + " (cached)");
+                collector.add(createTuple(docName, cached, false));
+                return;
+            }
+        }
+        try {
+            Module instance = pool.acquire();
+            instance.setDocumentKey(docName);
+            instance.setInputDocument(docContent);
+            if (batch.isEmpty()) {
+                batchStart = System.currentTimeMillis();
+            }
+            batch.add(instance);
+        } catch (Exception e) {
+            logger.error(e);
+            collector.add(createTuple(docName, docContent, true));
+            return;
+        }
+        long waited = System.currentTimeMillis() - batchStart;
+        if (batch.size() >= pipelineStep.getBatchSize() || (pipelineStep.getBatchWait() > 0 && waited >= pipelineStep.getBatchWait())) {
+            runBatch(collector);
+        }
+    }
+
+    /**
+     * Runs the module once for all documents in the current batch and emits
+     * a result for each of them. The timeout of the step applies per document
+     * in the batch.
+     */
+    protected void runBatch(TupleEntryCollector collector) {
+        List<Module> documents = batch;
+        batch = new ArrayList<Module>();
+        BatchBashModule batchModule = new BatchBashModule(pipelineStep, documents);
+        long batchBytes = 0;
+        for (Module document : documents) {
+            batchBytes += document.getInputDocument().length;
+        }
+        ScratchManager.ScratchSpace space = scratch.allocate(batchBytes);
+        batchModule.setLocalDirectory(space.getPath());
+        FutureTask<Module> executeModule = null;
+        try {
+            long tstart = System.currentTimeMillis();
+            executeModule = mes.executeModule(batchModule);
+            executeModule.get(pipelineStep.getTimeout() * documents.size(), TimeUnit.MILLISECONDS);
+            long tend = System.currentTimeMillis();
+            logger.info("Applying pipelineStep: " + pipelineStep.getName() + " on batch of " + documents.size() + " documents took " + (tend - tstart) + " ms.");
+            for (Module document : documents) {
+                logger.info("Module " + pipelineStep.getName() + " result: " + !document.hasFailed() + " on document: " + document.getDocumentKey());
+                if (!document.hasFailed()) {
+                    // The batch time is shared by its documents in proportion to their size
+                    long bytes = document.getInputDocument().length;
+                    timings.record(bytes, batchBytes > 0 ? (tend - tstart) * bytes / batchBytes : (tend - tstart) / documents.size());
+                }
+                if (cache != null && !document.hasFailed()) {
+                    cache.put(cache.key(document.getInputDocument()), document.getOutputDocument());
+                }
+                collector.add(createTuple(document.getDocumentKey(), document.getOutputDocument(), document.hasFailed()));
+            }
+        } catch (Exception e) {
+            if (e instanceof TimeoutException) {
+                mes.cancelModule(executeModule, batchModule);
+            }
+            logger.error(e);
+            for (Module document : documents) {
+                collector.add(createTuple(document.getDocumentKey(), document.getInputDocument(), true));
+            }
+        } finally {
+            scratch.release(space);
+            for (Module document : documents) {
+                pool.release(document);
             }
         }
+    }
+
+    private static Tuple createTuple(String docName, byte[] docContent, boolean docFailed) {
+        Tuple result = new Tuple();
+        result.add(new Text(docName));
+        result.add(new BytesWritable(docContent));
+        result.add(docFailed);
         return result;
     }
+
+    /**
+     * Starts the module on a document without waiting for the result. Cached
+     * documents and documents for which the module could not be started get
+     * their result right away.
+     */
+    protected void submit(TupleEntry args) {
+        InFlight job = new InFlight();
+        job.docName = args.getString("docName");
+        job.docContent = DocumentBuffers.take((BytesWritable) args.getObject("docContent"));
+        pending.add(job);
+        if (cache != null) {
+            job.cacheKey = cache.key(job.docContent);
+            byte[] cached = cache.get(job.cacheKey);
+            if (cached != null) {
+                logger.info("Module " + pipelineStep.getName() + " result: true on document: " + job.docName + " (cached)");
+                job.result = createTuple(job.docName, cached, false);
+                return;
+            }
+        }
+        job.space = scratch.allocate(job.docContent.length);
+        try {
+            job.instance = pool.acquire();
+            job.instance.setDocumentKey(job.docName);
+            job.instance.setInputDocument(job.docContent);
+            job.instance.setLocalDirectory(job.space.getPath());
+            job.start = System.currentTimeMillis();
+            job.future = mes.executeModule(job.instance, completed);
+        } catch (Exception e) {
+            logger.error(e);
+            finish(job, null, false);
+        }
+    }
+
+    /**
+     * Emits finished documents and waits until at most maxInFlight documents
+     * are pending. In input order a document is only emitted when all
+     * documents read before it have been emitted.
+     */
+    protected void drain(TupleEntryCollector collector, int maxInFlight) {
+        FutureTask<Module> done = completed.poll();
+        while (done != null) {
+            finish(done);
+            done = completed.poll();
+        }
+        emit(collector);
+        while (pending.size() > maxInFlight) {
+            InFlight oldest = null;
+            for (InFlight job : pending) {
+                if (job.result == null) {
+                    oldest = job;
+                    break;
+                }
+            }
+            long remaining = oldest.start + pipelineStep.getTimeout() - System.currentTimeMillis();
+            try {
+                done = remaining > 0 ? completed.poll(remaining, TimeUnit.MILLISECONDS) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for pipelineStep: " + pipelineStep.getName(), e);
+            }
+            if (done != null) {
+                finish(done);
+            } else if (oldest.start + pipelineStep.getTimeout() <= System.currentTimeMillis()) {
+                // The timed out instance may still be running; the pool creates a fresh one
+                mes.cancelModule(oldest.future, oldest.instance);
+                finish(oldest, new TimeoutException("pipelineStep: " + pipelineStep.getName() + " timed out on document: " + oldest.docName), true);
+            }
+            emit(collector);
+        }
+    }
+
+    private void finish(FutureTask<Module> future) {
+        for (InFlight job : pending) {
+            if (job.future == future && job.result == null) {
+                try {
+                    future.get();
+                    finish(job, null, false);
+                } catch (Exception e) {
+                    finish(job, e, false);
+                }
+                return;
+            }
+        }
+        // Futures of cancelled modules were already finished
+    }
+
+    private void finish(InFlight job, Exception error, boolean timedOut) {
+        if (error == null && job.instance != null && job.future != null) {
+            long tend = System.currentTimeMillis();
+            boolean outputDocFailed = job.instance.hasFailed();
+            logger.info("Applying pipelineStep: " + pipelineStep.getName() + " on document: " + job.docName + " took " + (tend - job.start) + " ms.");
+            logger.info("Module " + pipelineStep.getName() + " result: " + !outputDocFailed + " on document: " + job.docName);
+            job.result = createTuple(job.docName, job.instance.getOutputDocument(), outputDocFailed);
+            if (!outputDocFailed) {
+                timings.record(job.docContent.length, tend - job.start);
+            }
+            if (cache != null && !outputDocFailed) {
+                cache.put(job.cacheKey, job.instance.getOutputDocument());
+            }
+        } else {
+            if (error != null) {
+                logger.error(error);
+            }
+            job.result = createTuple(job.docName, job.docContent, true);
+        }
+        if (job.instance != null) {
+            if (timedOut) {
+                pool.discard(job.instance);
+            } else {
+                pool.release(job.instance);
+            }
+            job.instance = null;
+        }
+        if (job.space != null) {
+            scratch.release(job.space);
+            job.space = null;
+        }
+    }
+
+    private void emit(TupleEntryCollector collector) {
+        Iterator<InFlight> it = pending.iterator();
+        while (it.hasNext()) {
+            InFlight job = it.next();
+            if (job.result != null) {
+                collector.add(job.result);
+                it.remove();
+            } else if (!completionOrder) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * A document that has been submitted but not yet emitted.
+     */
+    private static class InFlight {
+        private String docName;
+        private byte[] docContent;
+        private Module instance;
+        private ScratchManager.ScratchSpace space;
+        private FutureTask<Module> future;
+        private String cacheKey;
+        private long start;
+        private Tuple result;
+    }
 }
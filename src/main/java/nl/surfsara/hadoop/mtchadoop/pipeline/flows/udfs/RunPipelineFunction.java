@@ -0,0 +1,280 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleConstants;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleExecutorService;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.PipelineStep;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ScratchManager;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.AllocationMeter;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Function that executes all steps of the pipeline in a single operator.
+ * Each step has its own worker threads (as many as the concurrency of the
+ * step, limited by its maximum concurrency) that take documents from a bounded queue, run the module and put the
+ * result on the queue of the next step. Documents are passed between steps as
+ * byte arrays, so they are not copied and wrapped in a tuple for each step,
+ * and a step can work on one document while the previous step works on the
+ * next one. A document that fails skips the remaining steps; it is emitted
+ * right away together with the name of the step that failed.
+ */
+@SuppressWarnings("serial")
+public class RunPipelineFunction extends BaseOperation<Tuple> implements Function<Tuple> {
+    private static final Logger logger = Logger.getLogger(RunPipelineFunction.class);
+    private ArrayList<PipelineStep> steps;
+    private int queueSize;
+    private PipelineStep.OutputOrder outputOrder;
+    private ModuleExecutorService mes;
+    private String localDir;
+    private List<StepRunner> runners;
+    private List<Thread> workers;
+    private BlockingQueue<Document> input;
+    private BlockingQueue<Document> output;
+    private TreeMap<Long, Document> reorder;
+    private int window;
+    private long submitted;
+    private long emitted;
+    private AllocationMeter allocationMeter;
+
+    // Eats: <docName, docContent, docFailed>
+    // Emits: <docName, docContent, docFailed, failedStep>
+    public RunPipelineFunction(ArrayList<PipelineStep> steps, int queueSize, PipelineStep.OutputOrder outputOrder) {
+        super(3, new Fields("docName", "docContent", "docFailed", "failedStep"));
+        this.steps = steps;
+        this.queueSize = queueSize;
+        this.outputOrder = outputOrder;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
+        String[] taskId = flowProcess.getStringProperty("mapred.task.id").split("_");
+        String scratchName = ScratchManager.SCRATCH_PREFIX + taskId[3] + "-" + taskId[4].substring(1) + "/" + UUID.randomUUID().toString();
+        localDir = flowProcess.getStringProperty("job.local.dir") + "/" + scratchName;
+        new File(localDir).mkdirs();
+        allocationMeter = new AllocationMeter();
+        mes = new ModuleExecutorService();
+        mes.setAllocationMeter(allocationMeter);
+        runners = new ArrayList<StepRunner>();
+        workers = new ArrayList<Thread>();
+        input = new ArrayBlockingQueue<Document>(queueSize);
+        output = new LinkedBlockingQueue<Document>();
+        reorder = new TreeMap<Long, Document>();
+        window = 0;
+        BlockingQueue<Document> in = input;
+        for (int i = 0; i < steps.size(); i++) {
+            PipelineStep step = steps.get(i);
+            if (step.getBatchSize() > 1) {
+                logger.warn("Batch mode is not supported in a fused pipeline; ignoring it for pipelineStep: " + step.getName());
+            }
+            StepRunner runner = new StepRunner(step, localDir, scratchName, mes, (Configuration) flowProcess.getConfigCopy());
+            runners.add(runner);
+            // The last step hands its documents to the task thread
+            BlockingQueue<Document> out = i == steps.size() - 1 ? output : new ArrayBlockingQueue<Document>(queueSize);
+            int concurrency = step.getEffectiveConcurrency();
+            for (int w = 0; w < concurrency; w++) {
+                Thread worker = new Thread(new StepWorker(runner, in, out), "mtc-" + step.getName() + "-" + w);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+            window += queueSize + concurrency;
+            in = out;
+        }
+        logger.info("Started fused pipeline of " + steps.size() + " steps with " + workers.size() + " workers and a window of " + window + " documents.");
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Override
+    public void flush(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
+        TupleEntryCollector collector = ((FunctionCall) operationCall).getOutputCollector();
+        while (emitted < submitted) {
+            emit(collector, take());
+        }
+        super.flush(flowProcess, operationCall);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void cleanup(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
+        super.cleanup(flowProcess, operationCall);
+        logger.info("Task, worker and module threads of the fused pipeline " + allocationMeter.getSummary());
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (StepRunner runner : runners) {
+            runner.close(flowProcess);
+        }
+        mes.destroy();
+        long killed = mes.getSubprocessManager().getKilled();
+        if (killed > 0) {
+            logger.info("Killed " + killed + " orphaned subprocess(es) for the fused pipeline.");
+        }
+        flowProcess.increment(ModuleConstants.COUNTER_GROUP, "Orphaned subprocesses killed", killed);
+        FileUtils.deleteQuietly(new File(localDir));
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void operate(FlowProcess flowProcess, FunctionCall functionCall) {
+        TupleEntry args = functionCall.getArguments();
+        TupleEntryCollector collector = functionCall.getOutputCollector();
+        Document doc = new Document();
+        doc.seq = submitted;
+        doc.name = args.getString("docName");
+        doc.content = DocumentBuffers.take((BytesWritable) args.getObject("docContent"));
+        doc.failed = args.getBoolean("docFailed");
+        logger.info("Processing: " + doc.name);
+        flowProcess.setStatus("Processing: " + doc.name);
+        allocationMeter.document();
+        while (submitted - emitted >= window) {
+            emit(collector, take());
+        }
+        try {
+            input.put(doc);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while submitting document: " + doc.name, e);
+        }
+        submitted++;
+        Document done = output.poll();
+        while (done != null) {
+            emit(collector, done);
+            done = output.poll();
+        }
+    }
+
+    private Document take() {
+        try {
+            return output.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the fused pipeline", e);
+        }
+    }
+
+    /**
+     * Emits a finished document. In input order the document is held back
+     * until all documents read before it have been emitted.
+     */
+    private void emit(TupleEntryCollector collector, Document doc) {
+        if (outputOrder == PipelineStep.OutputOrder.COMPLETION) {
+            collector.add(createTuple(doc));
+            emitted++;
+            return;
+        }
+        reorder.put(doc.seq, doc);
+        Document next = reorder.remove(emitted);
+        while (next != null) {
+            collector.add(createTuple(next));
+            emitted++;
+            next = reorder.remove(emitted);
+        }
+    }
+
+    private static Tuple createTuple(Document doc) {
+        Tuple result = new Tuple();
+        result.add(new Text(doc.name));
+        result.add(new BytesWritable(doc.content));
+        result.add(doc.failed);
+        result.add(new Text(doc.failedStep == null ? "" : doc.failedStep));
+        return result;
+    }
+
+    /**
+     * A document travelling through the steps of the fused pipeline.
+     */
+    private static class Document {
+        private long seq;
+        private String name;
+        private byte[] content;
+        private boolean failed;
+        private String failedStep;
+    }
+
+    /**
+     * Worker thread of a single step: runs the module of the step on the
+     * documents of its input queue and passes them on to the next queue.
+     */
+    private class StepWorker implements Runnable {
+        private final StepRunner runner;
+        private final BlockingQueue<Document> in;
+        private final BlockingQueue<Document> out;
+
+        private StepWorker(StepRunner runner, BlockingQueue<Document> in, BlockingQueue<Document> out) {
+            this.runner = runner;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Document doc = in.take();
+                    long mark = allocationMeter.mark();
+                    if (!doc.failed) {
+                        byte[] result = null;
+                        try {
+                            result = runner.run(doc.name, doc.content);
+                        } catch (Throwable t) {
+                            // Keep the worker alive (e.g. after an OutOfMemoryError) so the document is not lost
+                            logger.error("Step " + runner.getPipelineStep().getName() + " failed on: " + doc.name, t);
+                        }
+                        if (result != null) {
+                            doc.content = result;
+                        } else {
+                            doc.failed = true;
+                            doc.failedStep = runner.getPipelineStep().getName();
+                        }
+                    }
+                    allocationMeter.addSince(mark);
+                    // Failed documents skip the remaining steps
+                    if (doc.failed) {
+                        output.put(doc);
+                    } else {
+                        out.put(doc);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The task is cleaning up
+            }
+        }
+    }
+}
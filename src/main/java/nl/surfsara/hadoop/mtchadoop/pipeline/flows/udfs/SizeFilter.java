@@ -0,0 +1,56 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Filter;
+import cascading.operation.FilterCall;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleConstants;
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * Filter that removes either the documents larger than a threshold or the
+ * documents up to that size.
+ */
+@SuppressWarnings("serial")
+public class SizeFilter extends BaseOperation<Void> implements Filter<Void> {
+    private long threshold;
+    private boolean removeLarge;
+    private String counter;
+
+    /**
+     * @param threshold   the size in bytes
+     * @param removeLarge remove documents larger than the threshold (true) or those that are not (false)
+     * @param counter     name of the counter for removed tuples, or null
+     */
+    public SizeFilter(long threshold, boolean removeLarge, String counter) {
+        this.threshold = threshold;
+        this.removeLarge = removeLarge;
+        this.counter = counter;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public boolean isRemove(FlowProcess flowProcess, FilterCall<Void> filterCall) {
+        BytesWritable docContent = (BytesWritable) filterCall.getArguments().getObject("docContent");
+        boolean remove = (docContent.getLength() > threshold) == removeLarge;
+        if (remove && counter != null) {
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, counter, 1);
+        }
+        return remove;
+    }
+}
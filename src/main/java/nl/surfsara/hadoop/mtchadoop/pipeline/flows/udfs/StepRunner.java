@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.Module;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleConstants;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModuleExecutorService;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ModulePool;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.PipelineStep;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ResultCache;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.ScratchManager;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.StepTimings;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the module of a single pipeline step on one document at a time for the
+ * functions that run several steps in one operator. Module instances are
+ * pooled, each document gets its own scratch directory and results are
+ * looked up in and added to the result cache of the step (when enabled). A
+ * runner may be used by several threads at the same time.
+ */
+class StepRunner {
+    private static final Logger logger = Logger.getLogger(StepRunner.class);
+    private static final Map<String, byte[]> NO_DEPENDENCIES = Collections.emptyMap();
+
+    private final PipelineStep step;
+    private final ModuleExecutorService mes;
+    private final ModulePool pool;
+    private final ScratchManager scratch;
+    private final ResultCache cache;
+    private final StepTimings timings;
+
+    /**
+     * @param step        the pipeline step
+     * @param localDir    the local directory of the task
+     * @param scratchName name of the task scratch directory (used for the memory backed scratch space)
+     * @param mes         executes the modules
+     * @param conf        configuration to access HDFS for the result cache
+     */
+    StepRunner(PipelineStep step, String localDir, String scratchName, ModuleExecutorService mes, Configuration conf) {
+        this.step = step;
+        this.mes = mes;
+        String stepDir = localDir + "/" + step.getName();
+        long memoryQuota = step.getScratchMemoryMb() * 1024L * 1024L;
+        this.scratch = new ScratchManager(stepDir + "/docs", memoryQuota > 0 ? ScratchManager.getMemoryRoot(scratchName + "/" + step.getName()) : null, memoryQuota);
+        this.pool = new ModulePool(step, stepDir, mes.getSubprocessManager());
+        ResultCache resultCache = null;
+        if (step.isCache()) {
+            try {
+                resultCache = new ResultCache(step, conf);
+            } catch (IOException e) {
+                logger.error("Failed to open result cache for pipelineStep: " + step.getName() + "; running without it: " + e);
+            }
+        }
+        this.cache = resultCache;
+        this.timings = new StepTimings(step.getName());
+    }
+
+    PipelineStep getPipelineStep() {
+        return step;
+    }
+
+    /**
+     * Run the step on a document.
+     *
+     * @param docName the name of the document
+     * @param input   the input document
+     * @return the output document, or null when the step failed or timed out
+     */
+    byte[] run(String docName, byte[] input) {
+        return run(docName, input, NO_DEPENDENCIES);
+    }
+
+    /**
+     * Run a merge step on a document.
+     *
+     * @param docName      the name of the document
+     * @param input        the input document
+     * @param dependencies the outputs of the steps this step depends on, keyed on step name
+     * @return the output document, or null when the step failed or timed out
+     */
+    byte[] run(String docName, byte[] input, Map<String, byte[]> dependencies) {
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key(input, dependencies);
+            byte[] cached = cache.get(cacheKey);
+            if (cached != null) {
+                logger.info("Module " + step.getName() + " result: true on document: " + docName + " (cached)");
+                return cached;
+            }
+        }
+        Module instance = null;
+        boolean discard = false;
+        FutureTask<Module> executeModule = null;
+        ScratchManager.ScratchSpace space = scratch.allocate(input.length);
+        try {
+            instance = pool.acquire();
+            instance.setDocumentKey(docName);
+            instance.setInputDocument(input);
+            instance.setDependencyOutputs(dependencies);
+            instance.setLocalDirectory(space.getPath());
+            long tstart = System.currentTimeMillis();
+            executeModule = mes.executeModule(instance);
+            Module outputInstance = executeModule.get(step.getTimeout(), TimeUnit.MILLISECONDS);
+            long tend = System.currentTimeMillis();
+            boolean failed = outputInstance.hasFailed();
+            byte[] output = outputInstance.getOutputDocument();
+            if (!failed) {
+                timings.record(input.length, tend - tstart);
+                if (cache != null) {
+                    cache.put(cacheKey, output);
+                }
+            }
+            logger.info("Applying pipelineStep: " + step.getName() + " on document: " + docName + " took " + (tend - tstart) + " ms.");
+            logger.info("Module " + step.getName() + " result: " + !failed + " on document: " + docName);
+            return failed ? null : output;
+        } catch (Exception e) {
+            if (e instanceof TimeoutException) {
+                // The timed out instance may still be running; the pool creates a fresh one
+                mes.cancelModule(executeModule, instance);
+                discard = true;
+            } else if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.error(e);
+            return null;
+        } finally {
+            scratch.release(space);
+            if (instance != null) {
+                if (discard) {
+                    pool.discard(instance);
+                } else {
+                    pool.release(instance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tear down the module instances, report the timing and cache counters and remove
+     * the scratch space.
+     *
+     * @param flowProcess the flow process of the task
+     */
+    @SuppressWarnings("rawtypes")
+    void close(FlowProcess flowProcess) {
+        pool.close();
+        timings.report(flowProcess);
+        if (cache != null) {
+            String name = step.getName();
+            logger.info("Result cache of pipelineStep: " + name + ": " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.getEvictions() + " evictions.");
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, name + " cache hits", cache.getHits());
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, name + " cache misses", cache.getMisses());
+            flowProcess.increment(ModuleConstants.COUNTER_GROUP, name + " cache evictions", cache.getEvictions());
+        }
+        scratch.close();
+    }
+}
@@ -15,6 +15,9 @@
  */
 package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Abstract implementation of a Module. A large part of the functionality is
  * common for all modules and implemented here.
@@ -27,6 +30,7 @@ public abstract class AbstractModule implements Module {
     private byte[] outputFileContents;
     private String localDir;
     private boolean docFailed = false;
+    private Map<String, byte[]> dependencyOutputs = Collections.emptyMap();
 
     public void setInputDocument(byte[] input) {
         this.inputFileContents = input;
@@ -67,4 +71,27 @@ public abstract class AbstractModule implements Module {
     public String getDocumentKey() {
         return fileKey;
     }
+
+    public void setDependencyOutputs(Map<String, byte[]> outputs) {
+        this.dependencyOutputs = outputs;
+    }
+
+    public Map<String, byte[]> getDependencyOutputs() {
+        return dependencyOutputs;
+    }
+
+    public void setup(String taskDirectory, SubprocessManager subprocessManager) throws Exception {
+    }
+
+    public void reset() {
+        fileKey = null;
+        inputFileContents = null;
+        outputFileContents = null;
+        localDir = null;
+        docFailed = false;
+        dependencyOutputs = Collections.emptyMap();
+    }
+
+    public void teardown() throws Exception {
+    }
 }
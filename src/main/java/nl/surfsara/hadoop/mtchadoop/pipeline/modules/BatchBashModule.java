@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.CaptureOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Runs the run.sh script of a bash component once for a batch of documents.
+ * <p/>
+ * All documents in the batch are written to the input directory in the
+ * scratch directory of the batch. The script is called with BATCH_KEY as its
+ * first argument (instead of a document key) and is expected to write an
+ * output file for each input file to the output directory. Outputs are
+ * matched to their documents by key; documents without an output are marked
+ * failed one by one. A non-zero exit value or exceeding the threshold of
+ * lines in the standard error stream fails the whole batch.
+ */
+public class BatchBashModule extends SubprocessModule {
+    private static final Logger logger = Logger.getLogger(BatchBashModule.class);
+    public static final String BATCH_KEY = "--batch";
+
+    private PipelineStep pipelineStep;
+    private List<Module> documents;
+
+    public BatchBashModule(PipelineStep step, List<Module> documents) {
+        this.pipelineStep = step;
+        this.documents = documents;
+        setDocumentKey(BATCH_KEY);
+    }
+
+    public List<Module> getDocuments() {
+        return documents;
+    }
+
+    @Override
+    public Module call() throws Exception {
+        CaptureOutputStream cos = new CaptureOutputStream(pipelineStep.getCaptureBytes());
+        CaptureOutputStream ces = createStdErrCapture(pipelineStep.getCaptureBytes(), pipelineStep.getNumErrorLines());
+
+        File f = new File(pipelineStep.getModulePath() + "/run.sh");
+        File component = new File(pipelineStep.getModulePath());
+        File scratch = new File(getLocalDirectory());
+
+        // Write all inputs to scratch
+        File iDir = new File(scratch + "/input/");
+        iDir.mkdirs();
+        for (Module document : documents) {
+            InputStream is = new ByteArrayInputStream(document.getInputDocument());
+            FileOutputStream fos = new FileOutputStream(new File(iDir, document.getDocumentKey()));
+            IOUtils.copyLarge(is, fos);
+            fos.flush();
+            fos.close();
+        }
+
+        // Run script once for the batch
+        super.setCommandLine("/bin/bash " + f.getAbsolutePath() + " " + BATCH_KEY + " " + component.getAbsolutePath() + "/ " + scratch.getAbsolutePath() + "/");
+        super.setSubProcessStdOut(cos);
+        super.setSubProcessStdErr(ces);
+        int subReturn = super.runSubprocess();
+        if (subReturn != 0) {
+            setFailed(true);
+        }
+
+        if (ces.isLimitExceeded()) {
+            logger.info("Stderr exceeded " + pipelineStep.getNumErrorLines() + " lines - failing this batch.");
+            setFailed(true);
+        }
+        if (cos.getBytesWritten() > 0) {
+            logger.info(cos.getSummary());
+        }
+        if (ces.getBytesWritten() > 0) {
+            logger.error(ces.getSummary());
+        }
+
+        // Match output files to the documents in the batch
+        for (Module document : documents) {
+            File outputFile = new File(scratch + "/output/", document.getDocumentKey());
+            if (hasFailed()) {
+                document.setFailed(true);
+                document.setOutputDocument(document.getInputDocument());
+            } else if (outputFile.exists()) {
+                FileInputStream fis = new FileInputStream(outputFile);
+                document.setOutputDocument(IOUtils.toByteArray(fis));
+                fis.close();
+            } else {
+                logger.info("Output file does not exist for document: " + document.getDocumentKey() + " - failing this document.");
+                document.setFailed(true);
+                document.setOutputDocument(document.getInputDocument());
+            }
+        }
+        return this;
+    }
+
+}
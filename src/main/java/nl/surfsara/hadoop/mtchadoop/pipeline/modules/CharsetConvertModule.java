@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * In-JVM module that converts a document from one character encoding to
+ * another. Configured with the step options "from" and "to" (both default to
+ * UTF-8). Unmappable characters are replaced.
+ */
+public class CharsetConvertModule extends InProcessModule {
+    private Charset from;
+    private Charset to;
+
+    public CharsetConvertModule(PipelineStep step) {
+        super(step);
+    }
+
+    @Override
+    public void open() {
+        from = Charset.forName(getPipelineStep().getOption("from", "UTF-8"));
+        to = Charset.forName(getPipelineStep().getOption("to", "UTF-8"));
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer input) {
+        if (from.equals(to)) {
+            return input;
+        }
+        return to.encode(from.decode(input));
+    }
+}
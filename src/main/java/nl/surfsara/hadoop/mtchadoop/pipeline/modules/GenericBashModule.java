@@ -15,10 +15,13 @@
  */
 package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
 
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.CaptureOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.util.Map;
 
 /**
  * An implementation of a bash pipeline component.
@@ -28,7 +31,17 @@ import java.io.*;
  * calls the run.sh script with the useful arguments. Failures are flagged due
  * to timeout (failure to process in time) or by exceeding a threshold of
  * newlines in the standard error stream (see the PipelineStep class for these
- * settings).
+ * settings). The module is stopped as soon as the threshold is exceeded; only
+ * the start and end of stdout and stderr are kept for logging.
+ * <p/>
+ * When the step is configured for streaming the scratch files are skipped:
+ * the input document is piped to stdin of the script and stdout is taken
+ * as the output document. The module fails when stdout exceeds the maximum
+ * output size of the step.
+ * <p/>
+ * For merge steps in DAG layouts the outputs of all dependencies are written
+ * to dependencies/&lt;step name&gt;/&lt;document name&gt; in the scratch
+ * directory.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
@@ -43,43 +56,77 @@ public class GenericBashModule extends SubprocessModule {
 
     @Override
     public Module call() throws Exception {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ByteArrayOutputStream bes = new ByteArrayOutputStream();
-
         File f = new File(pipelineStep.getModulePath() + "/run.sh");
         File component = new File(pipelineStep.getModulePath());
         File scratch = new File(getLocalDirectory());
+        boolean streaming = pipelineStep.isStreaming();
 
-        // Write input to scratch
-        InputStream is = new ByteArrayInputStream(getInputDocument());
-        File iDir = new File(scratch + "/input/");
-        iDir.mkdirs();
-        File iFile = new File(iDir, getDocumentKey());
-        FileOutputStream fos = new FileOutputStream(iFile);
-        IOUtils.copyLarge(is, fos);
-        fos.flush();
-        fos.close();
+        // In streaming mode stdout is the output document, otherwise it is only logged
+        BoundedOutputStream bos = null;
+        CaptureOutputStream cos = null;
+        if (streaming) {
+            bos = new BoundedOutputStream(pipelineStep.getMaxOutputMb() * 1024L * 1024L);
+        } else {
+            cos = new CaptureOutputStream(pipelineStep.getCaptureBytes());
+        }
+        CaptureOutputStream ces = createStdErrCapture(pipelineStep.getCaptureBytes(), pipelineStep.getNumErrorLines());
+
+        if (streaming) {
+            // Pipe the input document to the stdin of the script
+            super.setSubProcessStdIn(new ByteArrayInputStream(getInputDocument()));
+        } else {
+            // Write input to scratch
+            InputStream is = new ByteArrayInputStream(getInputDocument());
+            File iDir = new File(scratch + "/input/");
+            iDir.mkdirs();
+            File iFile = new File(iDir, getDocumentKey());
+            FileOutputStream fos = new FileOutputStream(iFile);
+            IOUtils.copyLarge(is, fos);
+            fos.flush();
+            fos.close();
+        }
+
+        for (Map.Entry<String, byte[]> dependency : getDependencyOutputs().entrySet()) {
+            File dDir = new File(scratch + "/dependencies/" + dependency.getKey());
+            dDir.mkdirs();
+            FileUtils.writeByteArrayToFile(new File(dDir, getDocumentKey()), dependency.getValue());
+        }
 
         // Run script
         super.setCommandLine("/bin/bash " + f.getAbsolutePath() + " " + getDocumentKey() + " " + component.getAbsolutePath() + "/ " + scratch.getAbsolutePath() + "/");
-        super.setSubProcessStdOut(bos);
-        super.setSubProcessStdErr(bes);
+        super.setSubProcessStdOut(streaming ? bos : cos);
+        super.setSubProcessStdErr(ces);
         int subReturn = super.runSubprocess();
         if (subReturn != 0) {
             setFailed(true);
         }
 
-        String stderr = bes.toString();
-        int newlines = stderr.split(System.getProperty("line.separator")).length;
-        if (newlines > pipelineStep.getNumErrorLines()) {
+        if (ces.isLimitExceeded()) {
+            logger.info("Stderr exceeded " + pipelineStep.getNumErrorLines() + " lines - failing this module.");
             setFailed(true);
         }
-        String stdout = bos.toString();
-        logger.info(stdout);
-        logger.error(stderr);
-        bos.flush();
-        bos.close();
-        bes.close();
+        if (ces.getBytesWritten() > 0) {
+            logger.error(ces.getSummary());
+        }
+
+        if (streaming) {
+            if (bos.isLimitExceeded()) {
+                logger.info("Stdout exceeded " + pipelineStep.getMaxOutputMb() + " MB - failing this module.");
+                setFailed(true);
+            }
+            // Stdout is the output document; on failure it may be incomplete so keep the input
+            if (hasFailed()) {
+                setOutputDocument(getInputDocument());
+            } else {
+                setOutputDocument(bos.toByteArray());
+            }
+            bos.close();
+            return this;
+        }
+
+        if (cos.getBytesWritten() > 0) {
+            logger.info(cos.getSummary());
+        }
 
         // Read output file from scratch
         File outputFile = new File(scratch + "/output/", getDocumentKey());
@@ -95,4 +142,41 @@ public class GenericBashModule extends SubprocessModule {
         return this;
     }
 
+    /**
+     * Collects stdout in streaming mode up to a maximum size. Output beyond
+     * it is discarded and the subprocess is stopped.
+     */
+    private class BoundedOutputStream extends ByteArrayOutputStream {
+        private final long limit;
+        private boolean limitExceeded = false;
+
+        private BoundedOutputStream(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            synchronized (this) {
+                if (limitExceeded) {
+                    return;
+                }
+                if (count + (long) len <= limit) {
+                    super.write(b, off, len);
+                    return;
+                }
+                limitExceeded = true;
+            }
+            destroySubprocess();
+        }
+
+        private synchronized boolean isLimitExceeded() {
+            return limitExceeded;
+        }
+    }
+
 }
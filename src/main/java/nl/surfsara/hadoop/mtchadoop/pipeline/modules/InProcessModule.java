@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An abstract module that runs inside the task JVM. Lightweight steps (e.g.
+ * tokenising, format conversion or cleanup) do not need a subprocess, scratch
+ * files or pipe threads. Implementations only have to provide the process
+ * method.
+ * <p/>
+ * The input document is handed to process as a read-only buffer wrapping the
+ * document bytes (no copy is made). When the returned buffer is backed by an
+ * array that it covers completely, that array is used as the output document
+ * as is; so is the input document when the input buffer is returned
+ * untouched. Instances are reused for many documents: open is called before the
+ * first document and close after the last one, so expensive state can be set
+ * up once and reused.
+ */
+public abstract class InProcessModule extends AbstractModule {
+    private static final Logger logger = Logger.getLogger(InProcessModule.class);
+
+    private PipelineStep pipelineStep;
+
+    public InProcessModule(PipelineStep step) {
+        this.pipelineStep = step;
+    }
+
+    public PipelineStep getPipelineStep() {
+        return pipelineStep;
+    }
+
+    @Override
+    public void setup(String taskDirectory, SubprocessManager subprocessManager) throws Exception {
+        super.setup(taskDirectory, subprocessManager);
+        open();
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        close();
+        super.teardown();
+    }
+
+    /**
+     * Called once before the first document is processed.
+     *
+     * @throws Exception on any error; the task fails
+     */
+    public void open() throws Exception {
+    }
+
+    /**
+     * Called once after the last document was processed.
+     *
+     * @throws Exception on any error
+     */
+    public void close() throws Exception {
+    }
+
+    /**
+     * Process a single document.
+     *
+     * @param input a read-only buffer with the input document
+     * @return a buffer with the output document (from its position to its limit)
+     * @throws Exception on any error; the document is flagged as failed
+     */
+    protected abstract ByteBuffer process(ByteBuffer input) throws Exception;
+
+    @Override
+    public Module call() throws Exception {
+        try {
+            byte[] document = getInputDocument();
+            ByteBuffer input = ByteBuffer.wrap(document).asReadOnlyBuffer();
+            ByteBuffer output = process(input);
+            // A read-only buffer does not expose its array, so the identity case is recognised here
+            if (output == input && output.position() == 0 && output.remaining() == document.length) {
+                setOutputDocument(document);
+            } else {
+                setOutputDocument(toBytes(output));
+            }
+        } catch (Exception e) {
+            logger.error("Module " + pipelineStep.getName() + " failed on document: " + getDocumentKey() + ": " + e);
+            setFailed(true);
+            setOutputDocument(getInputDocument());
+        }
+        return this;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -15,10 +15,13 @@
  */
 package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
 
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
- * Defines pipeline module functionality.
+ * Defines pipeline module functionality. A module processes a document when
+ * called; its lifecycle is setup, then for each document call and reset,
+ * and finally teardown.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
@@ -47,7 +50,9 @@ public interface Module extends Callable<Module> {
     public abstract void setFailed(boolean failed);
 
     /**
-     * Set the local scratch directory (unique for each task)
+     * Set the local scratch directory (unique for each document, see the
+     * ScratchManager class). The directory is deleted after the module has
+     * finished.
      *
      * @param localDir A path to a directory that can be used for temporary data.
      */
@@ -64,4 +69,40 @@ public interface Module extends Callable<Module> {
 
     public abstract String getDocumentKey();
 
+    /**
+     * Set the outputs of the steps this step depends on, keyed on step name.
+     * Only used for merge steps in DAG layouts (steps that depend on more
+     * than one step); the input document is the output of the first
+     * dependency. Only the GenericBashModule reads these outputs, so the
+     * layout rejects merge steps of other modules.
+     *
+     * @param outputs the output documents of the dependencies
+     */
+    public abstract void setDependencyOutputs(Map<String, byte[]> outputs);
+
+    public abstract Map<String, byte[]> getDependencyOutputs();
+
+    /**
+     * Called once after the module has been created, before the first
+     * document. Modules are reused for many documents (see the ModulePool
+     * class), so expensive state can be set up here.
+     *
+     * @param taskDirectory     a directory for data shared by all documents of the task
+     * @param subprocessManager keeps track of processes started by the module
+     * @throws Exception on any error during setup
+     */
+    public abstract void setup(String taskDirectory, SubprocessManager subprocessManager) throws Exception;
+
+    /**
+     * Clears the state of the last document so the module can be reused.
+     */
+    public abstract void reset();
+
+    /**
+     * Called once when the module will not be used anymore.
+     *
+     * @throws Exception on any error during teardown
+     */
+    public abstract void teardown() throws Exception;
+
 }
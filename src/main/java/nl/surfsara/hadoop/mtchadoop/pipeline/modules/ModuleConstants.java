@@ -29,4 +29,9 @@ public final class ModuleConstants {
      * component directory.
      */
     public static final String ARCHIVEROOT = "components";
+
+    /**
+     * Group name for the Hadoop counters reported by the pipeline.
+     */
+    public static final String COUNTER_GROUP = "mtc-hadoop";
 }
@@ -15,29 +15,98 @@
  */
 package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
 
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.AllocationMeter;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 
 /**
- * This class provides access to the Threadpool used to execute modules.
+ * This class provides access to the Threadpool used to execute modules. It
+ * also manages the lifecycle of the subprocesses started by the modules: a
+ * module that is cancelled (e.g. after a timeout) has its process trees
+ * killed and processes still running when the service is destroyed are
+ * reaped.
  *
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class ModuleExecutorService {
     private ExecutorService threadPool;
+    private SubprocessManager subprocessManager;
+    private AllocationMeter allocationMeter;
 
     public ModuleExecutorService() {
         threadPool = Executors.newCachedThreadPool();
+        subprocessManager = new SubprocessManager();
     }
 
     public FutureTask<Module> executeModule(Module m) {
-        FutureTask<Module> mft = new FutureTask<Module>(m);
+        return executeModule(m, null);
+    }
+
+    /**
+     * Execute a module and add its future to the given queue when it is done
+     * (or cancelled), so callers can wait for several modules at once.
+     *
+     * @param m         the module
+     * @param completed queue that receives the future when it is done
+     * @return the future of the module
+     */
+    public FutureTask<Module> executeModule(Module m, final BlockingQueue<FutureTask<Module>> completed) {
+        if (m instanceof SubprocessModule) {
+            ((SubprocessModule) m).setSubprocessManager(subprocessManager);
+        }
+        Callable<Module> task = allocationMeter == null ? m : allocationMeter.wrap(m);
+        FutureTask<Module> mft = new FutureTask<Module>(task) {
+            @Override
+            protected void done() {
+                if (completed != null) {
+                    completed.add(this);
+                }
+            }
+        };
         threadPool.execute(mft);
         return mft;
     }
 
-    public void destroy() {
+    /**
+     * Cancel a running module: interrupt its thread and kill the processes
+     * it started, including their descendants.
+     *
+     * @param mft the future returned by executeModule
+     * @param m   the module
+     * @return the number of processes killed
+     */
+    public int cancelModule(FutureTask<Module> mft, Module m) {
+        int killed = subprocessManager.destroy(m);
+        mft.cancel(true);
+        return killed;
+    }
+
+    /**
+     * Measure the bytes allocated by the modules on the threads of this
+     * service with the given meter.
+     *
+     * @param allocationMeter the meter, or null to stop measuring
+     */
+    public void setAllocationMeter(AllocationMeter allocationMeter) {
+        this.allocationMeter = allocationMeter;
+    }
+
+    public SubprocessManager getSubprocessManager() {
+        return subprocessManager;
+    }
+
+    /**
+     * Stop all threads and kill all subprocesses that are still running.
+     *
+     * @return the number of straggling processes killed
+     */
+    public int destroy() {
+        int reaped = subprocessManager.reap();
         threadPool.shutdownNow();
+        return reaped;
     }
 }
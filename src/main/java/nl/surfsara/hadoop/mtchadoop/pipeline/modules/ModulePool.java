@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pool of module instances for a single pipeline step. Instances are created
+ * (and set up) only when no idle instance is available, so a task creates one
+ * instance for each document it processes at the same time instead of one
+ * for each document. Released instances are reset and reused; all instances
+ * are torn down when the pool is closed.
+ * <p/>
+ * When the step has a maximum concurrency, acquire blocks while that many
+ * instances are in use, which limits the number of subprocesses of the step
+ * that run at the same time.
+ */
+public class ModulePool {
+    private static final Logger logger = Logger.getLogger(ModulePool.class);
+
+    private final PipelineStep pipelineStep;
+    private final String taskDirectory;
+    private final SubprocessManager subprocessManager;
+    private final LinkedList<Module> idle = new LinkedList<Module>();
+    private final List<Module> created = new ArrayList<Module>();
+    private final Semaphore inUse;
+
+    public ModulePool(PipelineStep pipelineStep, String taskDirectory, SubprocessManager subprocessManager) {
+        this(pipelineStep, taskDirectory, subprocessManager, pipelineStep.getMaxConcurrency());
+    }
+
+    /**
+     * @param pipelineStep      the step
+     * @param taskDirectory     a directory for data shared by all documents of the task
+     * @param subprocessManager keeps track of processes started by the modules
+     * @param maxInUse          the maximum number of instances in use at the same time, or 0 for no limit
+     */
+    public ModulePool(PipelineStep pipelineStep, String taskDirectory, SubprocessManager subprocessManager, int maxInUse) {
+        this.pipelineStep = pipelineStep;
+        this.taskDirectory = taskDirectory;
+        this.subprocessManager = subprocessManager;
+        this.inUse = maxInUse > 0 ? new Semaphore(maxInUse) : null;
+    }
+
+    /**
+     * Take an idle instance from the pool or create a new one.
+     *
+     * @return a module that is set up and ready for a document
+     * @throws Exception when a new instance could not be created or set up
+     */
+    public Module acquire() throws Exception {
+        if (inUse != null) {
+            inUse.acquire();
+        }
+        synchronized (this) {
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+        }
+        Module instance;
+        try {
+            instance = pipelineStep.getInstance();
+            instance.setup(taskDirectory, subprocessManager);
+        } catch (Exception e) {
+            if (inUse != null) {
+                inUse.release();
+            }
+            throw e;
+        }
+        int count;
+        synchronized (this) {
+            created.add(instance);
+            count = created.size();
+        }
+        logger.info("Created module instance " + count + " for pipelineStep: " + pipelineStep.getName());
+        return instance;
+    }
+
+    /**
+     * Return an instance to the pool after it has finished a document.
+     *
+     * @param instance the module
+     */
+    public void release(Module instance) {
+        instance.reset();
+        synchronized (this) {
+            idle.addFirst(instance);
+        }
+        if (inUse != null) {
+            inUse.release();
+        }
+    }
+
+    /**
+     * Remove an instance from the pool, e.g. when it timed out and may still
+     * be running. The instance is torn down.
+     *
+     * @param instance the module
+     */
+    public void discard(Module instance) {
+        synchronized (this) {
+            created.remove(instance);
+        }
+        teardown(instance);
+        if (inUse != null) {
+            inUse.release();
+        }
+    }
+
+    /**
+     * Tear down all instances created by this pool.
+     */
+    public void close() {
+        List<Module> instances;
+        synchronized (this) {
+            instances = new ArrayList<Module>(created);
+            created.clear();
+            idle.clear();
+        }
+        for (Module instance : instances) {
+            teardown(instance);
+        }
+    }
+
+    private void teardown(Module instance) {
+        try {
+            instance.teardown();
+        } catch (Exception e) {
+            logger.error("Failed to tear down module for pipelineStep: " + pipelineStep.getName() + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.IOPump;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.LogOutputStream;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A long running component process that handles many documents. The worker is
+ * started once by calling the worker.sh script of the component with the
+ * component and scratch directories as arguments. Documents are then exchanged
+ * over the stdin and stdout of the process using length-prefixed frames (all
+ * integers are 4 byte big-endian):
+ * <p/>
+ * request: &lt;key length&gt;&lt;key (UTF-8)&gt;&lt;document length&gt;&lt;document&gt;
+ * <br/>
+ * response: &lt;status&gt;&lt;output length&gt;&lt;output document&gt;
+ * <p/>
+ * A status of 0 signals success. Stdout is reserved for the protocol; the
+ * worker should log to stderr. The request is written completely before the
+ * response is read, so a worker must read the whole request frame before it
+ * writes any of its response; a worker that writes while it still reads can
+ * fill the stdout pipe and block until the step times out. Closing stdin
+ * signals the worker to exit. When
+ * the worker crashes, or is destroyed after a timeout, it is restarted on the
+ * next document.
+ */
+public class ModuleWorker {
+    private static final Logger logger = Logger.getLogger(ModuleWorker.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final String WORKER_SCRIPT = "worker.sh";
+    private static final long STOP_GRACE_MS = 5000;
+
+    private final PipelineStep pipelineStep;
+    private final String localDir;
+    private final SubprocessManager subprocessManager;
+    private final Object owner;
+    private volatile Process process;
+    private DataOutputStream toWorker;
+    private DataInputStream fromWorker;
+    private IOPump.PipeHandle errPipe;
+    private int launches = 0;
+
+    /**
+     * Create a worker. Its process is registered under the given owner, so
+     * cancelling the owning module (see ModuleExecutorService.cancelModule)
+     * kills the worker as well.
+     *
+     * @param pipelineStep      the step the worker runs
+     * @param localDir          the scratch directory of the worker
+     * @param subprocessManager the manager that starts and kills the process
+     * @param owner             the module that uses this worker
+     */
+    public ModuleWorker(PipelineStep pipelineStep, String localDir, SubprocessManager subprocessManager, Object owner) {
+        this.pipelineStep = pipelineStep;
+        this.localDir = localDir;
+        this.subprocessManager = subprocessManager;
+        this.owner = owner;
+    }
+
+    /**
+     * Start the worker process if it is not running already.
+     *
+     * @throws IOException when the process could not be started
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning()) {
+            return;
+        }
+        File script = new File(pipelineStep.getModulePath() + "/" + WORKER_SCRIPT);
+        File component = new File(pipelineStep.getModulePath());
+        File scratch = new File(localDir);
+        List<String> argumentList = new ArrayList<String>();
+        argumentList.add("/bin/bash");
+        argumentList.add(script.getAbsolutePath());
+        argumentList.add(component.getAbsolutePath() + "/");
+        argumentList.add(scratch.getAbsolutePath() + "/");
+        logger.info("Starting worker for pipelineStep: " + pipelineStep.getName() + " (launch " + (launches + 1) + ")");
+
+        if (process != null) {
+            subprocessManager.unregister(owner, process);
+        }
+        Process p = subprocessManager.start(owner, new ProcessBuilder(argumentList));
+        toWorker = new DataOutputStream(new BufferedOutputStream(p.getOutputStream()));
+        fromWorker = new DataInputStream(new BufferedInputStream(p.getInputStream()));
+        if (errPipe != null) {
+            errPipe.finish();
+        }
+        errPipe = IOPump.getInstance().read("stderr", p.getErrorStream(), new LogOutputStream(logger, Level.ERROR), false);
+        process = p;
+        launches++;
+    }
+
+    /**
+     * Send a document to the worker and wait for the result. The worker is
+     * (re)started when needed. On any I/O failure the worker is destroyed so it
+     * will be restarted for the next document.
+     *
+     * @param key     the document key
+     * @param content the document content
+     * @return the result returned by the worker
+     * @throws IOException when communication with the worker fails
+     */
+    public synchronized Result process(String key, byte[] content) throws IOException {
+        start();
+        try {
+            byte[] keyBytes = key.getBytes(UTF8);
+            toWorker.writeInt(keyBytes.length);
+            toWorker.write(keyBytes);
+            toWorker.writeInt(content.length);
+            toWorker.write(content);
+            toWorker.flush();
+
+            int status = fromWorker.readInt();
+            int length = fromWorker.readInt();
+            if (length < 0) {
+                throw new IOException("Worker for pipelineStep: " + pipelineStep.getName() + " returned invalid length: " + length);
+            }
+            byte[] output = new byte[length];
+            fromWorker.readFully(output);
+            return new Result(status, output);
+        } catch (EOFException e) {
+            destroy();
+            throw new IOException("Worker for pipelineStep: " + pipelineStep.getName() + " exited while processing: " + key, e);
+        } catch (IOException e) {
+            destroy();
+            throw e;
+        }
+    }
+
+    public boolean isRunning() {
+        Process p = process;
+        if (p == null) {
+            return false;
+        }
+        try {
+            p.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Kill the worker process and its descendants. This is not synchronized so
+     * it can be called (e.g. after a timeout) while another thread waits on
+     * the worker.
+     */
+    public void destroy() {
+        Process p = process;
+        if (p != null) {
+            logger.info("Destroying worker for pipelineStep: " + pipelineStep.getName());
+            subprocessManager.destroyTree(p);
+        }
+    }
+
+    /**
+     * Stop the worker by closing its stdin and waiting (at most STOP_GRACE_MS)
+     * for it to exit, then kill whatever is left of the process tree. A worker
+     * that was killed already (e.g. after a timeout) is not waited for.
+     */
+    public void stop() {
+        Process p = process;
+        if (p != null) {
+            try {
+                p.getOutputStream().close();
+            } catch (IOException e) {
+                logger.debug(e);
+            }
+            long deadline = System.currentTimeMillis() + STOP_GRACE_MS;
+            try {
+                while (isRunning() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (isRunning()) {
+                logger.info("Worker for pipelineStep: " + pipelineStep.getName() + " did not exit within " + STOP_GRACE_MS + " ms after closing its input.");
+            }
+            subprocessManager.release(owner, p);
+            process = null;
+        }
+        if (errPipe != null) {
+            errPipe.finish();
+        }
+    }
+
+    public int getLaunches() {
+        return launches;
+    }
+
+    /**
+     * The response of the worker for a single document.
+     */
+    public static class Result {
+        private final int status;
+        private final byte[] output;
+
+        public Result(int status, byte[] output) {
+            this.status = status;
+            this.output = output;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getOutput() {
+            return output;
+        }
+
+        public boolean hasFailed() {
+            return status != 0;
+        }
+    }
+}
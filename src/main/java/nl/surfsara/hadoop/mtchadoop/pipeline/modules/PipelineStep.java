@@ -17,6 +17,11 @@ package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
 
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Class that defines for each component in the pipeline its name, executing class,
@@ -26,14 +31,33 @@ import java.lang.reflect.Constructor;
  */
 public class PipelineStep implements Serializable {
     /**
-     * Serial version ID for version 1.1
+     * Serial version ID for version 1.2
      */
-    private static final long serialVersionUID = -8824482494194734735L;
+    private static final long serialVersionUID = -3126805572816041947L;
 
     private final String name;
     private final Class<? extends Module> c;
     private long timeout;
     private int numErrorLines;
+    private boolean streaming = false;
+    private int batchSize = 1;
+    private long batchWait = 0;
+    private int captureBytes = 16 * 1024;
+    private int maxOutputMb = 256;
+    private int scratchMemoryMb = 0;
+    private int concurrency = 1;
+    private double cpu = 0;
+    private int memoryMb = 0;
+    private int maxConcurrency = 0;
+    private OutputOrder outputOrder = OutputOrder.INPUT;
+    private boolean cache = false;
+    private String cacheVersion;
+    private String cacheLocalDir = "/tmp/mtc-cache";
+    private int cacheLocalMb = 1024;
+    private String cacheHdfsPath;
+    private ArrayList<String> dependsOn = new ArrayList<String>();
+    private HashMap<String, String> options = new HashMap<String, String>();
+    private transient Constructor<? extends Module> constructor;
 
     public PipelineStep(String name, Class<? extends Module> c, long timeout, int numErrorLines) {
         this.name = name;
@@ -42,11 +66,24 @@ public class PipelineStep implements Serializable {
         this.numErrorLines = numErrorLines;
     }
 
+    /**
+     * Creates a new instance of the module of this step. Instances are
+     * normally obtained from a ModulePool so they are set up and reused.
+     *
+     * @return a new module
+     * @throws Exception when the module could not be created
+     */
     public Module getInstance() throws Exception {
-        Constructor<? extends Module> constructor = c.getConstructor(PipelineStep.class);
+        if (constructor == null) {
+            constructor = c.getConstructor(PipelineStep.class);
+        }
         return constructor.newInstance(this);
     }
 
+    public Class<? extends Module> getModuleClass() {
+        return c;
+    }
+
     public String getName() {
         return name;
     }
@@ -63,4 +100,299 @@ public class PipelineStep implements Serializable {
         return timeout;
     }
 
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Check whether documents are piped through stdin/stdout of the module
+     * instead of being exchanged via files in the scratch directory.
+     *
+     * @return true when streaming mode is enabled for this step
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Gets the maximum number of documents handed to a single invocation of
+     * the module. Values larger than one enable batch mode.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Gets the time (in ms) after which a batch that is not full is run. The
+     * wait is only checked when the next document arrives, so it bounds the
+     * wait between arrivals; a batch that is not full still waits for the
+     * next document or the end of the input. A value of 0 waits until the
+     * batch is full or the input ends. Streaming steps cannot be batched.
+     *
+     * @return the maximum batch wait time
+     */
+    public long getBatchWait() {
+        return batchWait;
+    }
+
+    public void setBatchWait(long batchWait) {
+        this.batchWait = batchWait;
+    }
+
+    /**
+     * Gets the number of bytes kept from both the start and the end of the
+     * stdout and stderr streams of the module for logging.
+     *
+     * @return the capture size in bytes
+     */
+    public int getCaptureBytes() {
+        return captureBytes;
+    }
+
+    public void setCaptureBytes(int captureBytes) {
+        this.captureBytes = captureBytes;
+    }
+
+    /**
+     * Gets the maximum size of the output document of a streaming step. The
+     * module fails (and is stopped) as soon as stdout exceeds it.
+     *
+     * @return the maximum output size in MB
+     */
+    public int getMaxOutputMb() {
+        return maxOutputMb;
+    }
+
+    public void setMaxOutputMb(int maxOutputMb) {
+        this.maxOutputMb = maxOutputMb;
+    }
+
+    /**
+     * Gets the amount of memory backed (tmpfs) scratch space each task may
+     * use for this step. When it is used up, scratch directories are created
+     * on the local disk. A value of 0 uses the local disk only.
+     *
+     * @return the quota in MB
+     */
+    public int getScratchMemoryMb() {
+        return scratchMemoryMb;
+    }
+
+    public void setScratchMemoryMb(int scratchMemoryMb) {
+        this.scratchMemoryMb = scratchMemoryMb;
+    }
+
+    /**
+     * Gets the number of documents each task runs through this step at the
+     * same time. Values larger than one enable the concurrent mode.
+     *
+     * @return the size of the in-flight window
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Gets the number of documents each task actually runs through this step
+     * at the same time: the concurrency, limited by the maximum concurrency.
+     *
+     * @return the number of workers of this step
+     */
+    public int getEffectiveConcurrency() {
+        int workers = Math.max(1, concurrency);
+        return maxConcurrency > 0 ? Math.min(workers, maxConcurrency) : workers;
+    }
+
+    /**
+     * Gets the number of cores a single document uses in this step. Used to
+     * size the containers of the pipeline.
+     *
+     * @return the number of cores, or 0 when unknown
+     */
+    public double getCpu() {
+        return cpu;
+    }
+
+    public void setCpu(double cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Gets the memory a single document uses in this step, outside of the
+     * task JVM (i.e. in the subprocesses of the module). Used to size the
+     * containers of the pipeline.
+     *
+     * @return the memory in MB, or 0 when unknown
+     */
+    public int getMemoryMb() {
+        return memoryMb;
+    }
+
+    public void setMemoryMb(int memoryMb) {
+        this.memoryMb = memoryMb;
+    }
+
+    /**
+     * Gets the maximum number of module instances (and so of sets of
+     * subprocesses) of this step that run at the same time in a task.
+     *
+     * @return the maximum, or 0 for no limit
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Gets the order in which documents processed concurrently are emitted.
+     *
+     * @return the output order
+     */
+    public OutputOrder getOutputOrder() {
+        return outputOrder;
+    }
+
+    public void setOutputOrder(OutputOrder outputOrder) {
+        this.outputOrder = outputOrder;
+    }
+
+    /**
+     * Check whether the results of this step are cached (see ResultCache).
+     *
+     * @return true when the result cache is enabled
+     */
+    public boolean isCache() {
+        return cache;
+    }
+
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the version of the component used in the cache key. When it is
+     * not set the version is derived from the files of the component.
+     *
+     * @return the version or null
+     */
+    public String getCacheVersion() {
+        return cacheVersion;
+    }
+
+    public void setCacheVersion(String cacheVersion) {
+        this.cacheVersion = cacheVersion;
+    }
+
+    /**
+     * Gets the directory on the local disk of each node that holds the cached
+     * results. It is shared by all tasks on the node.
+     *
+     * @return the local cache directory
+     */
+    public String getCacheLocalDir() {
+        return cacheLocalDir;
+    }
+
+    public void setCacheLocalDir(String cacheLocalDir) {
+        this.cacheLocalDir = cacheLocalDir;
+    }
+
+    /**
+     * Gets the maximum size of the local cache of this step on each node.
+     *
+     * @return the size in MB
+     */
+    public int getCacheLocalMb() {
+        return cacheLocalMb;
+    }
+
+    public void setCacheLocalMb(int cacheLocalMb) {
+        this.cacheLocalMb = cacheLocalMb;
+    }
+
+    /**
+     * Gets the directory on HDFS that holds cached results shared by all
+     * nodes.
+     *
+     * @return the HDFS cache directory or null when only the local cache is used
+     */
+    public String getCacheHdfsPath() {
+        return cacheHdfsPath;
+    }
+
+    public void setCacheHdfsPath(String cacheHdfsPath) {
+        this.cacheHdfsPath = cacheHdfsPath;
+    }
+
+    /**
+     * Gets the names of the steps whose output this step uses. A step without
+     * dependencies processes the input document; a step with more than one
+     * dependency is a merge step.
+     *
+     * @return the names of the dependencies
+     */
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public void setDependsOn(List<String> dependsOn) {
+        this.dependsOn = new ArrayList<String>(dependsOn);
+    }
+
+    /**
+     * Gets a module specific option of this step.
+     *
+     * @param key          the name of the option
+     * @param defaultValue returned when the option is not set
+     * @return the value of the option
+     */
+    public String getOption(String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    public void setOption(String key, String value) {
+        options.put(key, value);
+    }
+
+    /**
+     * Describes the settings of this step that affect its output: the module
+     * class, streaming mode, the dependencies and the options (sorted by
+     * name). Used to detect that a step changed between runs.
+     *
+     * @return a description of the settings
+     */
+    public String getOutputSettings() {
+        return "class=" + c.getName() + ";streaming=" + streaming + ";dependsOn=" + dependsOn + ";options=" + new TreeMap<String, String>(options);
+    }
+
+    /**
+     * Order of the documents emitted by a step: the order in which they were
+     * read or the order in which the module finished them.
+     */
+    public enum OutputOrder {
+        INPUT, COMPLETION
+    }
+
 }
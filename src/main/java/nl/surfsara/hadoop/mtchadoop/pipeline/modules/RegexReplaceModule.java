@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+/**
+ * In-JVM module that replaces all matches of a regular expression in a
+ * document. Configured with the step options "pattern", "replacement"
+ * (default: empty) and "charset" (default: UTF-8).
+ */
+public class RegexReplaceModule extends InProcessModule {
+    private Pattern pattern;
+    private String replacement;
+    private Charset charset;
+
+    public RegexReplaceModule(PipelineStep step) {
+        super(step);
+    }
+
+    @Override
+    public void open() {
+        String regex = getPipelineStep().getOption("pattern", null);
+        if (regex == null) {
+            throw new IllegalArgumentException("Option pattern is required for pipelineStep: " + getPipelineStep().getName());
+        }
+        pattern = Pattern.compile(regex);
+        replacement = getPipelineStep().getOption("replacement", "");
+        charset = Charset.forName(getPipelineStep().getOption("charset", "UTF-8"));
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer input) {
+        String document = charset.decode(input).toString();
+        return charset.encode(pattern.matcher(document).replaceAll(replacement));
+    }
+}
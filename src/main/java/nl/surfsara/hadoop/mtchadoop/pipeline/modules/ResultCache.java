@@ -0,0 +1,297 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the results of a pipeline step, keyed on the step name, the
+ * version of the component, the settings of the step that affect its output
+ * (e.g. its options) and the MD5 hash of the input document. Only successful
+ * results are cached.
+ * <p/>
+ * The first tier is a directory on the local disk of the node that is shared
+ * by all tasks on it. It is kept below a size limit by deleting the least
+ * recently used entries. The optional second tier is a directory on HDFS that
+ * is shared by all nodes; results found there are copied to the local tier.
+ */
+public class ResultCache {
+    private static final Logger logger = Logger.getLogger(ResultCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long SMALL_FILE = 1024 * 1024;
+    private static final long STALE_TEMPORARY_MS = 60 * 60 * 1000;
+
+    private final PipelineStep pipelineStep;
+    private final String version;
+    private final String settings;
+    private final File localDir;
+    private final long localLimit;
+    private final FileSystem fs;
+    private final Path hdfsDir;
+    private long localSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param pipelineStep the step whose results are cached
+     * @param conf         configuration to access HDFS (used when the step has an HDFS cache path)
+     * @throws IOException when HDFS could not be accessed
+     */
+    public ResultCache(PipelineStep pipelineStep, Configuration conf) throws IOException {
+        this.pipelineStep = pipelineStep;
+        this.version = pipelineStep.getCacheVersion() != null ? pipelineStep.getCacheVersion() : componentVersion(pipelineStep);
+        this.settings = pipelineStep.getOutputSettings();
+        this.localDir = new File(pipelineStep.getCacheLocalDir(), pipelineStep.getName());
+        this.localDir.mkdirs();
+        this.localLimit = pipelineStep.getCacheLocalMb() * 1024L * 1024L;
+        this.localSize = FileUtils.sizeOfDirectory(localDir);
+        if (pipelineStep.getCacheHdfsPath() != null) {
+            fs = FileSystem.get(conf);
+            hdfsDir = new Path(pipelineStep.getCacheHdfsPath(), pipelineStep.getName());
+        } else {
+            fs = null;
+            hdfsDir = null;
+        }
+        logger.info("Result cache for pipelineStep: " + pipelineStep.getName() + " version: " + version + " in " + localDir + (hdfsDir != null ? " and " + hdfsDir : ""));
+    }
+
+    /**
+     * Compute the cache key of an input document.
+     *
+     * @param input the input document
+     * @return the key
+     */
+    public String key(byte[] input) {
+        return key(input, Collections.<String, byte[]>emptyMap());
+    }
+
+    /**
+     * Compute the cache key of the input of a merge step, which includes the
+     * outputs of all its dependencies.
+     *
+     * @param input        the input document
+     * @param dependencies the outputs of the dependencies, keyed on step name
+     * @return the key
+     */
+    public String key(byte[] input, Map<String, byte[]> dependencies) {
+        StringBuilder key = new StringBuilder();
+        key.append(pipelineStep.getName()).append("\t").append(version).append("\t").append(settings).append("\t").append(MD5Hash.digest(input).toString());
+        List<String> names = new ArrayList<String>(dependencies.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            key.append("\t").append(name).append("=").append(MD5Hash.digest(dependencies.get(name)).toString());
+        }
+        return MD5Hash.digest(key.toString().getBytes(UTF8)).toString();
+    }
+
+    /**
+     * Look up a result, first on the local disk and then on HDFS.
+     *
+     * @param key the cache key
+     * @return the cached output document, or null when it is not cached
+     */
+    public byte[] get(String key) {
+        File local = new File(localDir, key);
+        try {
+            if (local.isFile()) {
+                byte[] output = FileUtils.readFileToByteArray(local);
+                // The modification time orders the entries for eviction
+                local.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+                return output;
+            }
+            if (hdfsDir != null) {
+                Path remote = new Path(hdfsDir, key);
+                if (fs.exists(remote)) {
+                    FSDataInputStream is = fs.open(remote);
+                    byte[] output;
+                    try {
+                        output = IOUtils.toByteArray(is);
+                    } finally {
+                        IOUtils.closeQuietly(is);
+                    }
+                    putLocal(key, output);
+                    hits.incrementAndGet();
+                    return output;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read cached result " + key + " for pipelineStep: " + pipelineStep.getName() + ": " + e);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a successful result in all tiers.
+     *
+     * @param key    the cache key
+     * @param output the output document
+     */
+    public void put(String key, byte[] output) {
+        try {
+            putLocal(key, output);
+            if (hdfsDir != null) {
+                Path remote = new Path(hdfsDir, key);
+                if (!fs.exists(remote)) {
+                    Path tmp = new Path(hdfsDir, "." + key + "-" + UUID.randomUUID().toString());
+                    FSDataOutputStream os = fs.create(tmp, true);
+                    try {
+                        os.write(output);
+                    } finally {
+                        os.close();
+                    }
+                    if (!fs.rename(tmp, remote)) {
+                        // Another task stored the same result first
+                        fs.delete(tmp, false);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to cache result " + key + " for pipelineStep: " + pipelineStep.getName() + ": " + e);
+        }
+    }
+
+    private void putLocal(String key, byte[] output) throws IOException {
+        File local = new File(localDir, key);
+        if (local.isFile()) {
+            return;
+        }
+        // Write to a temporary file first; other tasks on the node read the same directory
+        File tmp = new File(localDir, "." + key + "-" + UUID.randomUUID().toString());
+        FileUtils.writeByteArrayToFile(tmp, output);
+        if (!tmp.renameTo(local)) {
+            FileUtils.deleteQuietly(tmp);
+            return;
+        }
+        boolean evict;
+        synchronized (this) {
+            localSize += output.length;
+            evict = localSize > localLimit;
+        }
+        if (evict) {
+            evict();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the local tier is below
+     * 90% of its limit. The directory is scanned again because other tasks on
+     * the node add entries too. Temporary files that are older than an hour
+     * were left behind by killed tasks and are deleted as well.
+     */
+    private synchronized void evict() {
+        File[] files = localDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> entries = new ArrayList<File>();
+        final Map<File, Long> accessed = new HashMap<File, Long>();
+        long size = 0;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            long modified = file.lastModified();
+            if (file.getName().startsWith(".")) {
+                // Temporary files that are still being written are counted but not deleted
+                if (now - modified > STALE_TEMPORARY_MS && file.delete()) {
+                    continue;
+                }
+            } else {
+                entries.add(file);
+                accessed.put(file, modified);
+            }
+            size += file.length();
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return accessed.get(a).compareTo(accessed.get(b));
+            }
+        });
+        long target = localLimit / 10 * 9;
+        for (File entry : entries) {
+            if (size <= target) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                evictions.incrementAndGet();
+            }
+        }
+        localSize = size;
+    }
+
+    public PipelineStep getPipelineStep() {
+        return pipelineStep;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Derive a version from the component of a step: the module class, the
+     * names and sizes of the files of the component and the contents of its
+     * small files (scripts and configuration), so the cache is invalidated
+     * when the component is updated. Modification times are not used because
+     * they differ between the nodes the component is unpacked on.
+     */
+    private static String componentVersion(PipelineStep pipelineStep) throws IOException {
+        StringBuilder sb = new StringBuilder(pipelineStep.getModuleClass().getName());
+        File componentDir = new File(pipelineStep.getModulePath());
+        if (componentDir.isDirectory()) {
+            List<File> files = new ArrayList<File>(FileUtils.listFiles(componentDir, null, true));
+            Collections.sort(files);
+            for (File file : files) {
+                sb.append('\n').append(file.getPath()).append('\t').append(file.length());
+                if (file.length() <= SMALL_FILE) {
+                    sb.append('\t').append(MD5Hash.digest(FileUtils.readFileToByteArray(file)).toString());
+                }
+            }
+        }
+        return MD5Hash.digest(sb.toString().getBytes(UTF8)).toString();
+    }
+}
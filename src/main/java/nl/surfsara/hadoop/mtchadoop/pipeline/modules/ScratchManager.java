@@ -0,0 +1,224 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Hands out scratch directories to modules. Each document (or batch) gets its
+ * own directory, which is deleted as soon as the step has finished with it.
+ * <p/>
+ * Optionally directories are created on a memory backed file system (tmpfs,
+ * e.g. /dev/shm). The space used there is limited by a quota: a directory is
+ * only created in memory when the expected size of its contents (twice the
+ * input size, for the input and output files) still fits. Otherwise it falls
+ * back to the local disk. Memory roots are created directly in MEMORY_ROOT
+ * and hold a file with the pid of the task JVM; roots of tasks that no longer
+ * run (e.g. killed before they could clean up) are deleted when a new scratch
+ * manager is created, since tmpfs is not cleaned up with the container.
+ */
+public class ScratchManager {
+    private static final Logger logger = Logger.getLogger(ScratchManager.class);
+    public static final String MEMORY_ROOT = "/dev/shm";
+    public static final String SCRATCH_PREFIX = "mo-";
+    private static final String PID_FILE = ".pid";
+    private static final long STALE_AGE_MS = 10 * 60 * 1000;
+    private static final int SIZE_FACTOR = 2;
+
+    private final File diskRoot;
+    private final File memoryRoot;
+    private final long memoryQuota;
+    private long memoryReserved = 0;
+
+    /**
+     * Create a scratch manager that only uses the local disk.
+     *
+     * @param diskRoot the directory in which scratch directories are created
+     */
+    public ScratchManager(String diskRoot) {
+        this(diskRoot, null, 0);
+    }
+
+    /**
+     * Create a scratch manager that uses memory up to a quota.
+     *
+     * @param diskRoot    the directory in which scratch directories are created on disk
+     * @param memoryRoot  the directory in which scratch directories are created in memory (may be null)
+     * @param memoryQuota the maximum number of bytes to reserve in memory
+     */
+    public ScratchManager(String diskRoot, String memoryRoot, long memoryQuota) {
+        this.diskRoot = new File(diskRoot);
+        this.diskRoot.mkdirs();
+        File memory = null;
+        if (memoryRoot != null && memoryQuota > 0) {
+            memory = new File(memoryRoot);
+            sweepStale(memory.getParentFile());
+            if ((memory.mkdirs() || memory.isDirectory()) && writePid(memory)) {
+                logger.info("Using memory backed scratch space in " + memory + " with a quota of " + memoryQuota + " bytes.");
+            } else {
+                logger.warn("Memory backed scratch space " + memory + " is not available; using disk only.");
+                memory = null;
+            }
+        }
+        this.memoryRoot = memory;
+        this.memoryQuota = memoryQuota;
+    }
+
+    /**
+     * Gets the memory root for a task scratch directory. The name is
+     * flattened so the root is a direct child of MEMORY_ROOT, which is
+     * deleted as a whole on close.
+     *
+     * @param scratchName the name of the task scratch directory, may contain slashes
+     * @return the path of the memory root
+     */
+    public static String getMemoryRoot(String scratchName) {
+        return MEMORY_ROOT + "/" + scratchName.replace('/', '-');
+    }
+
+    /**
+     * Create a new scratch directory.
+     *
+     * @param inputSize the size of the input that will be written to the directory
+     * @return the scratch space
+     */
+    public ScratchSpace allocate(long inputSize) {
+        long expected = inputSize * SIZE_FACTOR;
+        boolean inMemory = false;
+        synchronized (this) {
+            if (memoryRoot != null && memoryReserved + expected <= memoryQuota) {
+                memoryReserved += expected;
+                inMemory = true;
+            }
+        }
+        File dir = new File(inMemory ? memoryRoot : diskRoot, UUID.randomUUID().toString());
+        dir.mkdirs();
+        return new ScratchSpace(dir, inMemory ? expected : 0);
+    }
+
+    /**
+     * Delete a scratch directory and everything in it.
+     *
+     * @param space the scratch space returned by allocate
+     */
+    public void release(ScratchSpace space) {
+        FileUtils.deleteQuietly(space.getDirectory());
+        if (space.reserved > 0) {
+            synchronized (this) {
+                memoryReserved -= space.reserved;
+            }
+        }
+    }
+
+    /**
+     * Delete all scratch directories, including the roots.
+     */
+    public void close() {
+        FileUtils.deleteQuietly(diskRoot);
+        if (memoryRoot != null) {
+            FileUtils.deleteQuietly(memoryRoot);
+        }
+    }
+
+    public synchronized long getMemoryReserved() {
+        return memoryReserved;
+    }
+
+    private static boolean writePid(File memory) {
+        try {
+            FileUtils.writeStringToFile(new File(memory, PID_FILE), getPid(), Charset.forName("UTF-8"));
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to write pid file in " + memory + ": " + e);
+            return false;
+        }
+    }
+
+    private static String getPid() {
+        // The name of the runtime is <pid>@<host>
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : name;
+    }
+
+    /**
+     * Delete the memory roots of tasks that no longer run: those whose pid
+     * file names a process that has exited, and those without a pid file that
+     * are older than STALE_AGE_MS.
+     *
+     * @param parent the directory that holds the memory roots
+     */
+    private static void sweepStale(File parent) {
+        File[] roots = parent == null ? null : parent.listFiles();
+        if (roots == null) {
+            return;
+        }
+        for (File root : roots) {
+            if (!root.isDirectory() || !root.getName().startsWith(SCRATCH_PREFIX)) {
+                continue;
+            }
+            File pidFile = new File(root, PID_FILE);
+            boolean stale;
+            if (pidFile.exists()) {
+                try {
+                    String pid = FileUtils.readFileToString(pidFile, Charset.forName("UTF-8")).trim();
+                    stale = !new File("/proc/" + pid).exists();
+                } catch (IOException e) {
+                    // Deleted by its owner or another task in the meantime
+                    stale = false;
+                }
+            } else {
+                stale = System.currentTimeMillis() - root.lastModified() > STALE_AGE_MS;
+            }
+            if (stale) {
+                logger.info("Deleting stale scratch space " + root);
+                FileUtils.deleteQuietly(root);
+            }
+        }
+    }
+
+    /**
+     * A scratch directory handed out by the scratch manager.
+     */
+    public static class ScratchSpace {
+        private final File directory;
+        private final long reserved;
+
+        private ScratchSpace(File directory, long reserved) {
+            this.directory = directory;
+            this.reserved = reserved;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public String getPath() {
+            return directory.getAbsolutePath();
+        }
+
+        public boolean isInMemory() {
+            return reserved > 0;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps track of the subprocesses started by modules so they can be killed,
+ * together with every process they spawned, when a module times out or when
+ * a task ends. Descendants are found by walking the parent links in /proc
+ * before the root process is killed. Processes started through this manager
+ * also get a unique tag in their environment, which their descendants
+ * inherit; this finds the processes left behind in the background after the
+ * root has exited and they were reparented. Scanning /proc is only done when
+ * a process is killed; the tags of processes that exited normally are kept
+ * and their leftovers are killed at once when the task ends (see reap).
+ * Subprocesses are deliberately kept in the process group of the task, so the
+ * container cleanup of YARN still reaches them when the task JVM itself is
+ * killed.
+ */
+public class SubprocessManager {
+    private static final Logger logger = Logger.getLogger(SubprocessManager.class);
+
+    public static final String TAG_VARIABLE = "MTCHADOOP_SUBPROCESS_TAG";
+
+    private final Map<Object, List<Process>> processes = new IdentityHashMap<Object, List<Process>>();
+    private final Map<Process, String> tags = new IdentityHashMap<Process, String>();
+    private final Set<String> exitedTags = new HashSet<String>();
+    private ExecutorService killer;
+    private long killed = 0;
+
+    /**
+     * Start a process with a tag in its environment and register it.
+     *
+     * @param owner the module (or worker) that starts the process
+     * @param pb    the process to start
+     * @return the started process
+     * @throws IOException when the process could not be started
+     */
+    public Process start(Object owner, ProcessBuilder pb) throws IOException {
+        String tag = UUID.randomUUID().toString();
+        pb.environment().put(TAG_VARIABLE, tag);
+        Process p = pb.start();
+        synchronized (this) {
+            tags.put(p, tag);
+        }
+        register(owner, p);
+        return p;
+    }
+
+    public synchronized void register(Object owner, Process p) {
+        List<Process> owned = processes.get(owner);
+        if (owned == null) {
+            owned = new ArrayList<Process>();
+            processes.put(owner, owned);
+        }
+        owned.add(p);
+    }
+
+    public synchronized void unregister(Object owner, Process p) {
+        tags.remove(p);
+        List<Process> owned = processes.get(owner);
+        if (owned != null) {
+            owned.remove(p);
+            if (owned.isEmpty()) {
+                processes.remove(owner);
+            }
+        }
+    }
+
+    /**
+     * Release a process when its owner is done with it. A process that is
+     * still running is killed with its descendants right away. Of a process
+     * that exited only the tag is kept, so a normal exit does not cost a scan
+     * of /proc; what it left in the background is killed by reap.
+     *
+     * @param owner the module (or worker) that started the process
+     * @param p     the process
+     */
+    public void release(Object owner, Process p) {
+        if (isAlive(p)) {
+            destroyTree(p);
+        }
+        synchronized (this) {
+            String tag = tags.get(p);
+            if (tag != null) {
+                exitedTags.add(tag);
+            }
+        }
+        unregister(owner, p);
+    }
+
+    /**
+     * Kill a process and its descendants on a separate thread, for callers
+     * that must not block, such as the stream listeners that run on the
+     * shared IOPump thread.
+     *
+     * @param p the process
+     */
+    public void destroyTreeLater(final Process p) {
+        ExecutorService executor;
+        synchronized (this) {
+            if (killer == null) {
+                killer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "subprocess-killer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            executor = killer;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                destroyTree(p);
+            }
+        });
+    }
+
+    /**
+     * Kill all processes (and their descendants) started by an owner.
+     *
+     * @param owner the module (or worker) that started the processes
+     * @return the number of processes killed
+     */
+    public int destroy(Object owner) {
+        List<Process> owned;
+        synchronized (this) {
+            owned = processes.remove(owner);
+        }
+        int count = 0;
+        if (owned != null) {
+            for (Process p : owned) {
+                count += destroyTree(p);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Kill all processes that are still registered, and the processes left
+     * behind by released processes, e.g. at the end of a task.
+     *
+     * @return the number of processes killed
+     */
+    public int reap() {
+        List<Object> owners;
+        ExecutorService executor;
+        synchronized (this) {
+            owners = new ArrayList<Object>(processes.keySet());
+            executor = killer;
+            killer = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        int count = 0;
+        for (Object owner : owners) {
+            count += destroy(owner);
+        }
+        Set<String> exited;
+        synchronized (this) {
+            exited = new HashSet<String>(exitedTags);
+            exitedTags.clear();
+        }
+        if (!exited.isEmpty()) {
+            List<Long> leftovers = getDescendants(-1, -1, exited);
+            kill(leftovers);
+            synchronized (this) {
+                killed += leftovers.size();
+            }
+            count += leftovers.size();
+        }
+        if (count > 0) {
+            logger.info("Reaped " + count + " straggling subprocess(es).");
+        }
+        return count;
+    }
+
+    /**
+     * Gets the total number of processes killed by this manager.
+     *
+     * @return the number of killed processes
+     */
+    public synchronized long getKilled() {
+        return killed;
+    }
+
+    /**
+     * Kill a process and all of its descendants. When the process has exited
+     * already, only the descendants it left behind are killed; these are
+     * found by their tag, so only for processes started by this manager.
+     *
+     * @param p the process
+     * @return the number of processes killed
+     */
+    public int destroyTree(Process p) {
+        boolean alive = isAlive(p);
+        String tag;
+        synchronized (this) {
+            tag = tags.get(p);
+        }
+        if (!alive && tag == null) {
+            return 0;
+        }
+        long pid = getPid(p);
+        // The pid of an exited process may have been reused, so then only the tag is followed
+        Set<String> tagged = tag == null ? Collections.<String>emptySet() : Collections.singleton(tag);
+        List<Long> descendants = getDescendants(alive ? pid : -1, pid, tagged);
+        if (!alive && descendants.isEmpty()) {
+            return 0;
+        }
+        List<Long> targets = new ArrayList<Long>();
+        if (alive && pid > 0) {
+            targets.add(pid);
+        }
+        targets.addAll(descendants);
+        kill(targets);
+        int count = (alive ? 1 : 0) + descendants.size();
+        logger.info((alive ? "Killed process " + pid + " and " : "Killed leftover processes of " + pid + ": ") + descendants.size() + " descendant(s).");
+        if (alive) {
+            p.destroy();
+        }
+        synchronized (this) {
+            killed += count;
+        }
+        return count;
+    }
+
+    private static void kill(List<Long> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        List<String> command = new ArrayList<String>();
+        command.add("kill");
+        command.add("-KILL");
+        for (Long pid : pids) {
+            command.add(pid.toString());
+        }
+        try {
+            new ProcessBuilder(command).start().waitFor();
+        } catch (IOException e) {
+            logger.error("Failed to kill processes " + pids + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isAlive(Process p) {
+        try {
+            p.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static long getPid(Process p) {
+        try {
+            // Java 9 and later
+            Method pidMethod = Process.class.getMethod("pid");
+            return ((Long) pidMethod.invoke(p)).longValue();
+        } catch (Exception e) {
+            // Fall back to the private field of UNIXProcess
+        }
+        try {
+            Field pidField = p.getClass().getDeclaredField("pid");
+            pidField.setAccessible(true);
+            return pidField.getInt(p);
+        } catch (Exception e) {
+            logger.debug("Unable to determine pid of subprocess: " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Find the live descendants of processes: those reached through the
+     * parent links from pid, and those that carry one of the tags in their
+     * environment.
+     *
+     * @param pid        the process to walk the parent links from, or -1 for none
+     * @param root       the pid of the root process, never part of the result
+     * @param taggedWith the tags to look for
+     * @return the pids of the descendants
+     */
+    private static List<Long> getDescendants(long pid, long root, Collection<String> taggedWith) {
+        List<Long> result = new ArrayList<Long>();
+        File[] procs = new File("/proc").listFiles();
+        if (procs == null) {
+            return result;
+        }
+        String marker = "\0" + TAG_VARIABLE + "=";
+        Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+        for (File proc : procs) {
+            String name = proc.getName();
+            if (!name.matches("[0-9]+")) {
+                continue;
+            }
+            try {
+                String stat = new String(Files.readAllBytes(new File(proc, "stat").toPath()), Charset.forName("UTF-8"));
+                // The command name may contain spaces; fields after it are: state ppid ...
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                if ("Z".equals(fields[0])) {
+                    continue;
+                }
+                Long self = Long.valueOf(name);
+                Long parent = Long.valueOf(fields[1]);
+                List<Long> siblings = children.get(parent);
+                if (siblings == null) {
+                    siblings = new ArrayList<Long>();
+                    children.put(parent, siblings);
+                }
+                siblings.add(self);
+                if (!taggedWith.isEmpty() && self.longValue() != root) {
+                    String environment = "\0" + new String(Files.readAllBytes(new File(proc, "environ").toPath()), Charset.forName("ISO-8859-1"));
+                    int start = environment.indexOf(marker);
+                    if (start >= 0) {
+                        start += marker.length();
+                        int end = environment.indexOf('\0', start);
+                        if (taggedWith.contains(environment.substring(start, end < 0 ? environment.length() : end))) {
+                            result.add(self);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // The process exited while scanning, or its environment is not readable
+            }
+        }
+        if (pid > 0) {
+            LinkedList<Long> queue = new LinkedList<Long>();
+            queue.add(pid);
+            while (!queue.isEmpty()) {
+                List<Long> direct = children.get(queue.removeFirst());
+                if (direct != null) {
+                    for (Long child : direct) {
+                        if (!result.contains(child)) {
+                            result.add(child);
+                        }
+                    }
+                    queue.addAll(direct);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -15,7 +15,8 @@
  */
 package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
 
-import nl.surfsara.hadoop.mtchadoop.pipeline.util.PipeThread;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.CaptureOutputStream;
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.IOPump;
 import org.apache.log4j.Logger;
 
 import java.io.InputStream;
@@ -31,10 +32,35 @@ import java.util.StringTokenizer;
  */
 public abstract class SubprocessModule extends AbstractModule {
     private static final Logger logger = Logger.getLogger(SubprocessModule.class);
-    private InputStream subProcessStdIn = System.in;
+    private InputStream subProcessStdIn = null;
     private OutputStream subProcessStdOut = System.out;
     private OutputStream subProcessStdErr = System.err;
     private String commandLine = "";
+    private volatile Process process;
+    private SubprocessManager subprocessManager;
+
+    @Override
+    public void setup(String taskDirectory, SubprocessManager subprocessManager) throws Exception {
+        super.setup(taskDirectory, subprocessManager);
+        this.subprocessManager = subprocessManager;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        subProcessStdIn = null;
+        subProcessStdOut = System.out;
+        subProcessStdErr = System.err;
+        commandLine = "";
+    }
+
+    public void setSubprocessManager(SubprocessManager subprocessManager) {
+        this.subprocessManager = subprocessManager;
+    }
+
+    public SubprocessManager getSubprocessManager() {
+        return subprocessManager;
+    }
 
     public void setCommandLine(String value) {
         this.commandLine = value;
@@ -48,6 +74,12 @@ public abstract class SubprocessModule extends AbstractModule {
         return subProcessStdIn;
     }
 
+    /**
+     * Set the stream piped to stdin of the subprocess. By default (null) the
+     * stdin of the subprocess is closed when it starts.
+     *
+     * @param subProcessStdIn the stream to pipe to the subprocess, or null
+     */
     public void setSubProcessStdIn(InputStream subProcessStdIn) {
         this.subProcessStdIn = subProcessStdIn;
     }
@@ -79,55 +111,100 @@ public abstract class SubprocessModule extends AbstractModule {
         }
         ProcessBuilder pb = new ProcessBuilder(argumentList);
         Process p;
-        p = pb.start();
-
-        Thread subIn = null;
-        if (subProcessStdIn != null) {
-            subIn = new Thread(new PipeThread("stdin", subProcessStdIn, p.getOutputStream(), true));
-            subIn.start();
+        if (subprocessManager != null) {
+            p = subprocessManager.start(this, pb);
+        } else {
+            p = pb.start();
         }
-
-        Thread subOut = null;
-        if (subProcessStdOut != null) {
-            if (subProcessStdOut.equals(System.out)) {
-                subOut = new Thread(new PipeThread("stdout", p.getInputStream(), subProcessStdOut, false));
+        process = p;
+
+        IOPump pump = IOPump.getInstance();
+        IOPump.PipeHandle subIn = null;
+        IOPump.PipeHandle subOut = null;
+        IOPump.PipeHandle subErr = null;
+        try {
+            if (subProcessStdIn != null) {
+                subIn = pump.write("stdin", subProcessStdIn, p.getOutputStream(), true);
             } else {
-                subOut = new Thread(new PipeThread("stdout", p.getInputStream(), subProcessStdOut, true));
+                // Nothing to send: the subprocess sees end of input right away
+                p.getOutputStream().close();
             }
-            subOut.start();
-        }
-        Thread subErr = null;
-        if (subProcessStdErr != null) {
-            if (subProcessStdErr.equals(System.err)) {
-                subErr = new Thread(new PipeThread("stdout", p.getErrorStream(), subProcessStdErr, false));
-            } else {
-                subErr = new Thread(new PipeThread("stdout", p.getErrorStream(), subProcessStdErr, true));
+            if (subProcessStdOut != null) {
+                subOut = pump.read("stdout", p.getInputStream(), subProcessStdOut, !subProcessStdOut.equals(System.out));
             }
-            subErr.start();
-        }
-        p.waitFor();
+            if (subProcessStdErr != null) {
+                subErr = pump.read("stderr", p.getErrorStream(), subProcessStdErr, !subProcessStdErr.equals(System.err));
+            }
+            p.waitFor();
 
-        if (subErr != null) {
-            if (subErr.isAlive()) {
-                subErr.join();
+            StringBuilder pipeStats = new StringBuilder("Subprocess pipes:");
+            if (subErr != null) {
+                subErr.finish();
+                subErr.await();
+                pipeStats.append(" stderr ").append(subErr.getBytesTransferred()).append(" bytes");
+            }
+
+            if (subOut != null) {
+                subOut.finish();
+                subOut.await();
+                pipeStats.append(" stdout ").append(subOut.getBytesTransferred()).append(" bytes");
             }
-            subErr = null;
-        }
 
-        if (subOut != null) {
-            if (subOut.isAlive()) {
-                subOut.join();
+            if (subIn != null) {
+                subIn.await();
+                pipeStats.append(" stdin ").append(subIn.getBytesTransferred()).append(" bytes");
+            }
+            logger.info(pipeStats.toString());
+            return p.exitValue();
+        } finally {
+            // Also release the pipes when interrupted (e.g. cancelled after a timeout)
+            if (subErr != null) {
+                subErr.finish();
+            }
+            if (subOut != null) {
+                subOut.finish();
             }
-            subOut = null;
+            if (subprocessManager != null) {
+                // Kills the tree when we got here without the process exiting
+                subprocessManager.release(this, p);
+            }
+            process = null;
         }
+    }
+
+    /**
+     * Creates a sink for stderr of the subprocess. Lines are counted as they
+     * arrive and the subprocess is destroyed as soon as the number of lines
+     * exceeds maxLines.
+     *
+     * @param captureBytes the number of bytes to keep from the start and end of stderr
+     * @param maxLines     the number of lines allowed on stderr
+     * @return the sink
+     */
+    protected CaptureOutputStream createStdErrCapture(int captureBytes, long maxLines) {
+        return new CaptureOutputStream(captureBytes, maxLines, new CaptureOutputStream.LimitListener() {
+            @Override
+            public void limitExceeded(CaptureOutputStream stream) {
+                destroySubprocess();
+            }
+        });
+    }
 
-        if (subIn != null) {
-            if (subIn.isAlive()) {
-                subIn.join();
+    /**
+     * Kill the running subprocess (if any) and its descendants, e.g. when its
+     * output shows it has failed already.
+     */
+    public void destroySubprocess() {
+        Process p = process;
+        if (p != null) {
+            logger.info("Destroying subprocess: " + getCommandLine());
+            if (subprocessManager != null) {
+                // Called from stream listeners on the shared IOPump thread, which must not block
+                subprocessManager.destroyTreeLater(p);
+            } else {
+                p.destroy();
             }
-            subIn = null;
         }
-        return p.exitValue();
     }
 
 }
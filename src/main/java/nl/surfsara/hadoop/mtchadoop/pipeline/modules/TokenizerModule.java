@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-JVM module that splits a document into tokens on whitespace and outputs
+ * one token per line. Works on the raw bytes, which is safe for UTF-8 and
+ * other ASCII compatible encodings.
+ */
+public class TokenizerModule extends InProcessModule {
+
+    public TokenizerModule(PipelineStep step) {
+        super(step);
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer input) {
+        // Every token is followed by a newline, so the output is at most one byte longer
+        byte[] output = new byte[input.remaining() + 1];
+        int length = 0;
+        boolean inToken = false;
+        while (input.hasRemaining()) {
+            byte b = input.get();
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f') {
+                if (inToken) {
+                    output[length++] = '\n';
+                    inToken = false;
+                }
+            } else {
+                output[length++] = b;
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            output[length++] = '\n';
+        }
+        return ByteBuffer.wrap(output, 0, length);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * A module that hands documents to a persistent worker process (see the
+ * ModuleWorker class) instead of starting a new process for each document.
+ * This avoids paying the startup costs of a component (e.g. loading large
+ * models) for every document. Each module instance starts its own worker in
+ * setup and stops it in teardown.
+ */
+public class WorkerModule extends AbstractModule {
+    private static final Logger logger = Logger.getLogger(WorkerModule.class);
+
+    private PipelineStep pipelineStep;
+    private ModuleWorker worker;
+
+    public WorkerModule(PipelineStep step) {
+        this.pipelineStep = step;
+    }
+
+    @Override
+    public void setup(String taskDirectory, SubprocessManager subprocessManager) throws Exception {
+        super.setup(taskDirectory, subprocessManager);
+        worker = new ModuleWorker(pipelineStep, taskDirectory, subprocessManager, this);
+        try {
+            worker.start();
+        } catch (IOException e) {
+            // The worker is started again for the first document
+            logger.error("Failed to start worker for pipelineStep: " + pipelineStep.getName() + ": " + e);
+        }
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        if (worker != null) {
+            logger.info("Worker for pipelineStep: " + pipelineStep.getName() + " was launched " + worker.getLaunches() + " time(s).");
+            worker.stop();
+        }
+        super.teardown();
+    }
+
+    public ModuleWorker getWorker() {
+        return worker;
+    }
+
+    @Override
+    public Module call() throws Exception {
+        if (worker == null) {
+            throw new IllegalStateException("No worker available for pipelineStep: " + pipelineStep.getName());
+        }
+        ModuleWorker.Result result = worker.process(getDocumentKey(), getInputDocument());
+        if (result.hasFailed()) {
+            logger.info("Worker returned status " + result.getStatus() + " - failing this module.");
+            setFailed(true);
+            setOutputDocument(getInputDocument());
+        } else {
+            setOutputDocument(result.getOutput());
+        }
+        return this;
+    }
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the bytes allocated while documents are processed: by the thread
+ * that created the meter (the task thread) and by the work that other threads
+ * run on its behalf, such as the module threads of the executor service and
+ * the worker threads of fused and DAG pipelines. Work on other threads is
+ * measured per call (see wrap, mark and addSince), so threads of a pool that
+ * exit early are counted as well. Only available on JVMs that support per
+ * thread allocation counters (com.sun.management.ThreadMXBean); otherwise
+ * nothing is measured.
+ */
+public class AllocationMeter {
+    private final com.sun.management.ThreadMXBean threadMXBean;
+    private final long threadId;
+    private final long start;
+    private final AtomicLong otherThreads = new AtomicLong();
+    private long documents;
+
+    public AllocationMeter() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threadId = Thread.currentThread().getId();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadMXBean = (com.sun.management.ThreadMXBean) bean;
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+            start = threadMXBean.getThreadAllocatedBytes(threadId);
+        } else {
+            threadMXBean = null;
+            start = 0;
+        }
+    }
+
+    public void document() {
+        documents++;
+    }
+
+    /**
+     * Gets the bytes allocated so far by the current thread, to be passed to
+     * addSince when the measured work is done.
+     *
+     * @return the allocated bytes, or -1 when not supported
+     */
+    public long mark() {
+        if (threadMXBean == null) {
+            return -1;
+        }
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Adds the bytes allocated by the current thread since a mark. Has no
+     * effect on the thread that created the meter, which is measured as a
+     * whole.
+     *
+     * @param mark the value returned by mark on the current thread
+     */
+    public void addSince(long mark) {
+        if (threadMXBean == null || mark < 0 || Thread.currentThread().getId() == threadId) {
+            return;
+        }
+        otherThreads.addAndGet(mark() - mark);
+    }
+
+    /**
+     * Wrap a task so the bytes it allocates are measured on whatever thread
+     * runs it.
+     *
+     * @param task the task
+     * @return the measured task
+     */
+    public <V> Callable<V> wrap(final Callable<V> task) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                long mark = mark();
+                try {
+                    return task.call();
+                } finally {
+                    addSince(mark);
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the bytes allocated by the task thread since the meter was
+     * created.
+     *
+     * @return the allocated bytes, or -1 when not supported
+     */
+    public long getTaskThreadBytes() {
+        if (threadMXBean == null) {
+            return -1;
+        }
+        return threadMXBean.getThreadAllocatedBytes(threadId) - start;
+    }
+
+    /**
+     * Gets the bytes allocated by the task thread and by the work measured on
+     * other threads.
+     *
+     * @return the allocated bytes, or -1 when not supported
+     */
+    public long getAllocatedBytes() {
+        if (threadMXBean == null) {
+            return -1;
+        }
+        return getTaskThreadBytes() + otherThreads.get();
+    }
+
+    public String getSummary() {
+        long allocated = getAllocatedBytes();
+        if (allocated < 0) {
+            return "allocation not measured (not supported by this JVM)";
+        }
+        return "allocated " + allocated + " bytes (" + getTaskThreadBytes() + " on the task thread) for " + documents + " document(s)" + (documents > 0 ? " (" + (allocated / documents) + " bytes per document)" : "");
+    }
+}
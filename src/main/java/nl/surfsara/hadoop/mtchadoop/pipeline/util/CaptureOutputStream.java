@@ -0,0 +1,166 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.util;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Utility class; a bounded sink for subprocess output. Only the first and the
+ * last bytes written are kept (for diagnostics), everything in between is
+ * counted and discarded. Lines are counted as bytes arrive. When a maximum
+ * number of lines is set, a listener is notified (once) as soon as the
+ * output exceeds it.
+ */
+public class CaptureOutputStream extends OutputStream {
+    private final byte[] head;
+    private int headLength = 0;
+    private final byte[] tail;
+    private int tailPos = 0;
+    private int tailLength = 0;
+    private long bytesWritten = 0;
+    private long newlines = 0;
+    private byte lastByte = '\n';
+    private final long maxLines;
+    private LimitListener listener;
+    private boolean limitExceeded = false;
+
+    /**
+     * Listener that is notified when the output exceeds the maximum number of
+     * lines.
+     */
+    public interface LimitListener {
+        void limitExceeded(CaptureOutputStream stream);
+    }
+
+    /**
+     * Create a capture stream without a line limit.
+     *
+     * @param captureBytes the number of bytes to keep from both the start and the end of the output
+     */
+    public CaptureOutputStream(int captureBytes) {
+        this(captureBytes, -1, null);
+    }
+
+    /**
+     * Create a capture stream with a line limit.
+     *
+     * @param captureBytes the number of bytes to keep from both the start and the end of the output
+     * @param maxLines     the number of lines allowed, negative for no limit
+     * @param listener     notified when the number of lines exceeds maxLines (may be null)
+     */
+    public CaptureOutputStream(int captureBytes, long maxLines, LimitListener listener) {
+        this.head = new byte[captureBytes];
+        this.tail = new byte[captureBytes];
+        this.maxLines = maxLines;
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        LimitListener notify = null;
+        synchronized (this) {
+            if (len <= 0) {
+                return;
+            }
+            bytesWritten += len;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    newlines++;
+                }
+            }
+            lastByte = b[off + len - 1];
+
+            int toHead = Math.min(len, head.length - headLength);
+            System.arraycopy(b, off, head, headLength, toHead);
+            headLength += toHead;
+            appendTail(b, off + toHead, len - toHead);
+
+            if (!limitExceeded && maxLines >= 0 && getLineCount() > maxLines) {
+                limitExceeded = true;
+                notify = listener;
+            }
+        }
+        if (notify != null) {
+            notify.limitExceeded(this);
+        }
+    }
+
+    private void appendTail(byte[] b, int off, int len) {
+        int capacity = tail.length;
+        if (capacity == 0 || len <= 0) {
+            return;
+        }
+        if (len >= capacity) {
+            System.arraycopy(b, off + len - capacity, tail, 0, capacity);
+            tailPos = 0;
+            tailLength = capacity;
+            return;
+        }
+        int first = Math.min(len, capacity - tailPos);
+        System.arraycopy(b, off, tail, tailPos, first);
+        System.arraycopy(b, off + first, tail, 0, len - first);
+        tailPos = (tailPos + len) % capacity;
+        tailLength = Math.min(capacity, tailLength + len);
+    }
+
+    /**
+     * Gets the number of lines written; a last line without a newline is
+     * counted as well.
+     *
+     * @return the number of lines
+     */
+    public synchronized long getLineCount() {
+        return newlines + (lastByte != '\n' ? 1 : 0);
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    /**
+     * Gets the captured output for diagnostics: the start and the end of the
+     * output with the number of omitted bytes in between.
+     *
+     * @return a string of at most twice the capture size (plus a marker)
+     */
+    public synchronized String getSummary() {
+        Charset cs = Charset.defaultCharset();
+        StringBuilder sb = new StringBuilder(new String(head, 0, headLength, cs));
+        long omitted = bytesWritten - headLength - tailLength;
+        if (omitted > 0) {
+            sb.append("\n... [").append(omitted).append(" bytes omitted] ...\n");
+        }
+        if (tailLength < tail.length) {
+            sb.append(new String(tail, 0, tailLength, cs));
+        } else {
+            byte[] ordered = new byte[tailLength];
+            System.arraycopy(tail, tailPos, ordered, 0, tailLength - tailPos);
+            System.arraycopy(tail, 0, ordered, tailLength - tailPos, tailPos);
+            sb.append(new String(ordered, cs));
+        }
+        return sb.toString();
+    }
+}
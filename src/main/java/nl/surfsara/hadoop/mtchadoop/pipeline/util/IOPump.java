@@ -0,0 +1,322 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.util;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared I/O pump that copies (pipes) the streams of all subprocesses in a
+ * task JVM. Output streams of subprocesses (stdout, stderr) are polled by a
+ * single pump thread that only reads what is available, so it never blocks on
+ * one process while others wait. Input streams of subprocesses (stdin) may
+ * block when a process does not read, these are written by a small fixed pool
+ * of writer threads. Copy buffers are pooled. Byte counts are kept per pipe
+ * and in total per pipe id.
+ */
+public class IOPump {
+    private static final Logger logger = Logger.getLogger(IOPump.class);
+    public static final int BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_POOLED_BUFFERS = 32;
+    public static final int NUM_WRITERS = 8;
+    private static final long MAX_IDLE_WAIT = 10;
+
+    private static IOPump instance;
+
+    private final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+    private final List<PipeHandle> readers = new CopyOnWriteArrayList<PipeHandle>();
+    private final Map<String, AtomicLong> totals = new ConcurrentHashMap<String, AtomicLong>();
+    private final ExecutorService writers;
+    private final Object signal = new Object();
+    private boolean signalled = false;
+
+    public static synchronized IOPump getInstance() {
+        if (instance == null) {
+            instance = new IOPump();
+        }
+        return instance;
+    }
+
+    private IOPump() {
+        ThreadFactory daemonFactory = new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "io-pump-writer-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        writers = Executors.newFixedThreadPool(NUM_WRITERS, daemonFactory);
+        Thread pumpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pumpLoop();
+            }
+        }, "io-pump-reader");
+        pumpThread.setDaemon(true);
+        pumpThread.start();
+    }
+
+    /**
+     * Pipe an output stream of a subprocess (stdout or stderr) to a sink. The
+     * owner must call finish() on the returned handle once the subprocess has
+     * exited, after which the remaining bytes are copied.
+     *
+     * @param id             the name of the pipe (used for logging and totals)
+     * @param is             the stream to read from
+     * @param os             the stream to write to
+     * @param closeAfterCopy close both streams when done
+     * @return a handle to the pipe
+     */
+    public PipeHandle read(String id, InputStream is, OutputStream os, boolean closeAfterCopy) {
+        PipeHandle handle = new PipeHandle(id, is, os, closeAfterCopy);
+        readers.add(handle);
+        wakeup();
+        return handle;
+    }
+
+    /**
+     * Pipe a source to the input stream of a subprocess (stdin). The pipe is
+     * done when the source is exhausted or the subprocess stops reading.
+     *
+     * @param id             the name of the pipe (used for logging and totals)
+     * @param is             the stream to read from
+     * @param os             the stream to write to
+     * @param closeAfterCopy close both streams when done
+     * @return a handle to the pipe
+     */
+    public PipeHandle write(String id, InputStream is, OutputStream os, boolean closeAfterCopy) {
+        final PipeHandle handle = new PipeHandle(id, is, os, closeAfterCopy);
+        writers.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = acquireBuffer();
+                try {
+                    int n;
+                    while ((n = handle.is.read(buffer)) != -1) {
+                        handle.os.write(buffer, 0, n);
+                        handle.count(n);
+                    }
+                    handle.close();
+                    handle.complete(null);
+                } catch (IOException e) {
+                    // E.g. a broken pipe when the subprocess exited early
+                    handle.closeQuietly();
+                    handle.complete(e);
+                } finally {
+                    releaseBuffer(buffer);
+                }
+            }
+        });
+        return handle;
+    }
+
+    /**
+     * Gets the total number of bytes copied by all pipes with the given id.
+     *
+     * @param id the name of the pipe (e.g. stdout)
+     * @return the number of bytes
+     */
+    public long getTotalBytes(String id) {
+        AtomicLong total = totals.get(id);
+        return total == null ? 0 : total.get();
+    }
+
+    private byte[] acquireBuffer() {
+        byte[] buffer = bufferPool.poll();
+        return buffer == null ? new byte[BUFFER_SIZE] : buffer;
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        bufferPool.offer(buffer);
+    }
+
+    private void wakeup() {
+        synchronized (signal) {
+            signalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    private void pumpLoop() {
+        byte[] buffer = acquireBuffer();
+        long idleWait = 0;
+        while (true) {
+            boolean progress = false;
+            for (PipeHandle handle : readers) {
+                try {
+                    if (handle.pumpAvailable(buffer)) {
+                        progress = true;
+                    } else if (handle.finishing) {
+                        handle.close();
+                        readers.remove(handle);
+                        handle.complete(null);
+                    }
+                } catch (IOException e) {
+                    readers.remove(handle);
+                    handle.closeQuietly();
+                    handle.complete(e);
+                }
+            }
+            if (progress) {
+                idleWait = 0;
+            } else {
+                idleWait = Math.min(Math.max(1, idleWait * 2), MAX_IDLE_WAIT);
+                synchronized (signal) {
+                    try {
+                        if (!signalled) {
+                            signal.wait(readers.isEmpty() ? 0 : idleWait);
+                        }
+                    } catch (InterruptedException e) {
+                        logger.debug(e);
+                    }
+                    signalled = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A single pipe handled by the pump.
+     */
+    public class PipeHandle {
+        private final String id;
+        private final InputStream is;
+        private final OutputStream os;
+        private final boolean closeAfterCopy;
+        private final AtomicLong bytes = new AtomicLong();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean finishing = false;
+        private volatile IOException error;
+
+        private PipeHandle(String id, InputStream is, OutputStream os, boolean closeAfterCopy) {
+            this.id = id;
+            this.is = is;
+            this.os = os;
+            this.closeAfterCopy = closeAfterCopy;
+        }
+
+        private boolean pumpAvailable(byte[] buffer) throws IOException {
+            int available = is.available();
+            if (available <= 0) {
+                return false;
+            }
+            int n = is.read(buffer, 0, Math.min(available, buffer.length));
+            if (n < 0) {
+                finishing = true;
+                return false;
+            }
+            os.write(buffer, 0, n);
+            count(n);
+            return true;
+        }
+
+        private void count(int n) {
+            bytes.addAndGet(n);
+            AtomicLong total = totals.get(id);
+            if (total == null) {
+                synchronized (totals) {
+                    total = totals.get(id);
+                    if (total == null) {
+                        total = new AtomicLong();
+                        totals.put(id, total);
+                    }
+                }
+            }
+            total.addAndGet(n);
+        }
+
+        private void close() throws IOException {
+            try {
+                os.flush();
+            } finally {
+                if (closeAfterCopy) {
+                    try {
+                        os.close();
+                    } finally {
+                        is.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Close the streams after a failed copy; errors are ignored because
+         * the error of the copy is the one reported.
+         */
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                logger.debug(id + ": " + e);
+            }
+        }
+
+        private void complete(IOException e) {
+            if (e != null) {
+                logger.error(id + ": " + e);
+            }
+            error = e;
+            done.countDown();
+        }
+
+        /**
+         * Signal that the source of this pipe will not produce new data (i.e.
+         * the subprocess has exited). Remaining bytes are copied by the pump.
+         */
+        public void finish() {
+            finishing = true;
+            wakeup();
+        }
+
+        /**
+         * Wait until all bytes have been copied.
+         *
+         * @throws InterruptedException when interrupted while waiting
+         */
+        public void await() throws InterruptedException {
+            done.await();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getBytesTransferred() {
+            return bytes.get();
+        }
+
+        public IOException getError() {
+            return error;
+        }
+    }
+}
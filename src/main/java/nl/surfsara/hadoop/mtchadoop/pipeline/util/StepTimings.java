@@ -0,0 +1,228 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.util;
+
+import cascading.flow.FlowProcess;
+import cascading.stats.FlowStats;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing statistics of a pipeline step, used to estimate how long a document
+ * takes from its size. For every document the size (in KB) and the runtime
+ * (in ms) are summed in such a way that a linear model runtime = fixed +
+ * perKb * size can be fitted with least squares. The sums are reported as
+ * Hadoop counters so they add up over all tasks of a run, and are stored
+ * after the run in a tab separated file with one line per step.
+ */
+public class StepTimings {
+    /**
+     * Group name for the timing counters of the steps.
+     */
+    public static final String COUNTER_GROUP = "mtc-hadoop step timings";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] SUMS = {"documents", "kb", "kb^2", "ms", "kb*ms"};
+    private static final int N = 0, KB = 1, KB2 = 2, MS = 3, KBMS = 4;
+
+    private final String step;
+    private final long[] sums;
+
+    public StepTimings(String step) {
+        this(step, new long[SUMS.length]);
+    }
+
+    private StepTimings(String step, long[] sums) {
+        this.step = step;
+        this.sums = sums;
+    }
+
+    public String getStep() {
+        return step;
+    }
+
+    /**
+     * Record the runtime of a document.
+     *
+     * @param bytes  the size of the input document
+     * @param millis the time the step took
+     */
+    public synchronized void record(long bytes, long millis) {
+        long kb = bytes / 1024;
+        sums[N]++;
+        sums[KB] += kb;
+        sums[KB2] += kb * kb;
+        sums[MS] += millis;
+        sums[KBMS] += kb * millis;
+    }
+
+    public synchronized long getDocuments() {
+        return sums[N];
+    }
+
+    /**
+     * Gets the fitted runtime of a document, independent of its size.
+     *
+     * @return the fixed runtime in ms
+     */
+    public synchronized double getFixedMs() {
+        return fit()[0];
+    }
+
+    /**
+     * Gets the fitted runtime per KB of a document.
+     *
+     * @return the runtime per KB in ms
+     */
+    public synchronized double getMsPerKb() {
+        return fit()[1];
+    }
+
+    /**
+     * Estimate the runtime of a document.
+     *
+     * @param bytes the size of the document
+     * @return the expected runtime in ms
+     */
+    public synchronized double estimateMs(long bytes) {
+        double[] model = fit();
+        return model[0] + model[1] * (bytes / 1024.0);
+    }
+
+    /**
+     * Least squares fit of runtime = fixed + perKb * size. Both coefficients
+     * are kept non-negative; when all documents had the same size only the
+     * fixed runtime is fitted.
+     */
+    private double[] fit() {
+        double n = sums[N];
+        if (n == 0) {
+            return new double[]{0, 0};
+        }
+        double denominator = n * sums[KB2] - (double) sums[KB] * sums[KB];
+        double perKb = denominator > 0 ? (n * sums[KBMS] - (double) sums[KB] * sums[MS]) / denominator : 0;
+        if (perKb < 0) {
+            perKb = 0;
+        }
+        double fixed = (sums[MS] - perKb * sums[KB]) / n;
+        if (fixed < 0) {
+            fixed = 0;
+            perKb = sums[KB] > 0 ? (double) sums[MS] / sums[KB] : 0;
+        }
+        return new double[]{fixed, perKb};
+    }
+
+    /**
+     * Add the sums of this task to the counters of the run.
+     *
+     * @param flowProcess the flow process of the task
+     */
+    @SuppressWarnings("rawtypes")
+    public synchronized void report(FlowProcess flowProcess) {
+        for (int i = 0; i < SUMS.length; i++) {
+            flowProcess.increment(COUNTER_GROUP, step + " " + SUMS[i], sums[i]);
+        }
+    }
+
+    /**
+     * Read the sums of a step from the counters of finished flows.
+     *
+     * @param step  the name of the step
+     * @param stats the statistics of the flows
+     * @return the timings of the step
+     */
+    public static StepTimings fromCounters(String step, List<FlowStats> stats) {
+        long[] sums = new long[SUMS.length];
+        for (FlowStats flowStats : stats) {
+            for (int i = 0; i < SUMS.length; i++) {
+                sums[i] += flowStats.getCounterValue(COUNTER_GROUP, step + " " + SUMS[i]);
+            }
+        }
+        return new StepTimings(step, sums);
+    }
+
+    /**
+     * Read the timings of all steps from a file written by write.
+     *
+     * @param fs   the file system
+     * @param path the path of the file
+     * @return the timings, one for each step
+     * @throws IOException when the file could not be read
+     */
+    public static List<StepTimings> read(FileSystem fs, String path) throws IOException {
+        List<StepTimings> timings = new ArrayList<StepTimings>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(path)), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != SUMS.length + 1) {
+                    continue;
+                }
+                long[] sums = new long[SUMS.length];
+                for (int i = 0; i < SUMS.length; i++) {
+                    sums[i] = Long.parseLong(fields[i + 1]);
+                }
+                timings.add(new StepTimings(fields[0], sums));
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return timings;
+    }
+
+    /**
+     * Write the timings of all steps to a file.
+     *
+     * @param fs      the file system
+     * @param path    the path of the file
+     * @param timings the timings, one for each step
+     * @throws IOException when the file could not be written
+     */
+    public static void write(FileSystem fs, String path, List<StepTimings> timings) throws IOException {
+        FSDataOutputStream fos = fs.create(new Path(path), true);
+        Writer writer = new OutputStreamWriter(fos, UTF8);
+        try {
+            for (StepTimings timing : timings) {
+                StringBuilder line = new StringBuilder(timing.getStep());
+                synchronized (timing) {
+                    for (long sum : timing.sums) {
+                        line.append('\t').append(sum);
+                    }
+                }
+                writer.write(line.append('\n').toString());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        double[] model = fit();
+        return String.format("%s: %d documents, %.1f ms + %.3f ms/KB", step, sums[N], model[0], model[1]);
+    }
+}
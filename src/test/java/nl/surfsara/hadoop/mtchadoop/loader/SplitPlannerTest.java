@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.loader;
+
+import nl.surfsara.hadoop.mtchadoop.pipeline.util.StepTimings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SplitPlannerTest {
+    private static final double DELTA = 1e-9;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file(String name, long length) throws Exception {
+        File file = folder.newFile(name);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void estimatesSizeWithoutTimings() {
+        SplitPlanner planner = new SplitPlanner(Collections.<StepTimings>emptyList());
+        assertEquals(64 * 1024, planner.estimate(0), DELTA);
+        assertEquals(1000 + 64 * 1024, planner.estimate(1000), DELTA);
+    }
+
+    @Test
+    public void estimatesWithTimings() {
+        StepTimings timings = new StepTimings("step");
+        timings.record(1024, 10);
+        timings.record(2048, 20);
+        SplitPlanner planner = new SplitPlanner(Arrays.asList(timings));
+        assertEquals(40, planner.estimate(4096), DELTA);
+        // An empty document still has a cost
+        assertEquals(1, planner.estimate(0), DELTA);
+    }
+
+    @Test
+    public void fallsBackToSizeWhenNoRuntimeWasRecorded() {
+        StepTimings timings = new StepTimings("step");
+        timings.record(1024, 0);
+        timings.record(2048, 0);
+        SplitPlanner planner = new SplitPlanner(Arrays.asList(timings, new StepTimings("unused")));
+        assertEquals(1000 + 64 * 1024, planner.estimate(1000), DELTA);
+    }
+
+    @Test
+    public void assignsEveryFileOnce() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 10; i++) {
+            files.add(file("doc" + i, i * 10000L));
+        }
+        List<List<File>> plan = new SplitPlanner(Collections.<StepTimings>emptyList()).plan(files, 3);
+        assertEquals(3, plan.size());
+        Set<File> planned = new HashSet<File>();
+        int count = 0;
+        for (List<File> split : plan) {
+            planned.addAll(split);
+            count += split.size();
+        }
+        assertEquals(files.size(), count);
+        assertEquals(new HashSet<File>(files), planned);
+    }
+
+    @Test
+    public void balancesLargeDocuments() throws Exception {
+        List<File> files = Arrays.asList(file("a", 1000000), file("b", 1000000), file("c", 10000), file("d", 10000));
+        List<List<File>> plan = new SplitPlanner(Collections.<StepTimings>emptyList()).plan(files, 2);
+        assertEquals(2, plan.size());
+        for (List<File> split : plan) {
+            assertEquals(2, split.size());
+            // Each split gets one large and one small document
+            assertTrue(split.get(0).length() == 1000000 && split.get(1).length() == 10000);
+        }
+    }
+
+    @Test
+    public void leavesOutEmptySplits() throws Exception {
+        List<File> files = Arrays.asList(file("a", 10), file("b", 20));
+        assertEquals(2, new SplitPlanner(Collections.<StepTimings>emptyList()).plan(files, 5).size());
+        assertEquals(0, new SplitPlanner(Collections.<StepTimings>emptyList()).plan(Collections.<File>emptyList(), 5).size());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline;
+
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.CharsetConvertModule;
+import nl.surfsara.hadoop.mtchadoop.pipeline.modules.GenericBashModule;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineLayoutTest {
+    private static final String BASH = GenericBashModule.class.getName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A step of a layout; dependsOn is left out when null.
+     */
+    private static String step(String name, String className, String... dependsOn) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\": \"").append(name).append("\", \"class\": \"").append(className).append("\", \"timeout\": 1000, \"numErrorLines\": 10");
+        if (dependsOn != null) {
+            sb.append(", \"dependsOn\": [");
+            for (int i = 0; i < dependsOn.length; i++) {
+                sb.append(i > 0 ? ", " : "").append('"').append(dependsOn[i]).append('"');
+            }
+            sb.append("]");
+        }
+        return sb.append("}").toString();
+    }
+
+    private PipelineLayout layout(String... steps) throws Exception {
+        StringBuilder sb = new StringBuilder("{\"id\": \"test\", \"version\": \"1\", \"description\": \"test\", \"layout\": [");
+        for (int i = 0; i < steps.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(steps[i]);
+        }
+        sb.append("]}");
+        File file = folder.newFile();
+        FileUtils.writeStringToFile(file, sb.toString(), Charset.forName("UTF-8"));
+        return new PipelineLayout(file.getAbsolutePath());
+    }
+
+    @Test
+    public void linearLayoutIsNotADag() throws Exception {
+        PipelineLayout layout = layout(step("a", BASH, (String[]) null), step("b", BASH, (String[]) null));
+        assertFalse(layout.isDag());
+        assertEquals(Arrays.asList("a"), layout.getSteps().get(1).getDependsOn());
+    }
+
+    @Test
+    public void acceptsMergedBranches() throws Exception {
+        PipelineLayout layout = layout(step("a", BASH), step("b", BASH), step("merge", BASH, "a", "b"));
+        assertTrue(layout.isDag());
+        assertEquals(Arrays.asList("a", "b"), layout.getSteps().get(2).getDependsOn());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDependencyOnLaterStep() throws Exception {
+        layout(step("a", BASH, "b"), step("b", BASH));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDependency() throws Exception {
+        layout(step("a", BASH), step("b", BASH, "missing"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnusedBranch() throws Exception {
+        layout(step("a", BASH), step("b", BASH), step("c", BASH, "a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateStepName() throws Exception {
+        layout(step("a", BASH), step("a", BASH, "a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMergeStepThatIsNotBash() throws Exception {
+        layout(step("a", BASH), step("b", BASH), step("merge", CharsetConvertModule.class.getName(), "a", "b"));
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BlobReferenceTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parsesCreatedReference() {
+        byte[] record = BlobReference.create(new Path("hdfs://namenode:8020/blobs/doc 1"), 12345L);
+        BlobReference reference = BlobReference.parse(new BytesWritable(record));
+        assertNotNull(reference);
+        assertEquals("hdfs://namenode:8020/blobs/doc 1", reference.getPath().toString());
+        assertEquals(12345L, reference.getLength());
+    }
+
+    @Test
+    public void parsesOnlyTheValidBytes() {
+        byte[] record = BlobReference.create(new Path("/blobs/doc"), 1L);
+        BytesWritable value = new BytesWritable(record);
+        // A reused writable has a buffer larger than its value
+        value.setCapacity(record.length + 100);
+        BlobReference reference = BlobReference.parse(value);
+        assertNotNull(reference);
+        assertEquals("/blobs/doc", reference.getPath().toString());
+    }
+
+    @Test
+    public void documentsAreNotReferences() {
+        assertNull(BlobReference.parse(new BytesWritable(new byte[0])));
+        assertNull(BlobReference.parse(new BytesWritable("a plain document that is long enough".getBytes(UTF8))));
+    }
+
+    @Test
+    public void truncatedReferenceIsNotAReference() {
+        byte[] record = BlobReference.create(new Path("/blobs/doc"), 1L);
+        assertNull(BlobReference.parse(new BytesWritable(Arrays.copyOf(record, record.length - 3))));
+    }
+
+    @Test
+    public void readsAndCopiesBlob() throws Exception {
+        byte[] contents = "contents of the blob".getBytes(UTF8);
+        File blob = folder.newFile("blob");
+        FileUtils.writeByteArrayToFile(blob, contents);
+        BlobReference reference = BlobReference.parse(new BytesWritable(BlobReference.create(new Path(blob.toURI()), contents.length)));
+        assertNotNull(reference);
+        Configuration conf = new Configuration();
+        assertArrayEquals(contents, reference.read(conf));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(contents.length, reference.copy(conf, out));
+        assertArrayEquals(contents, out.toByteArray());
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.flows;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentIndexTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keyDependsOnAllValues() {
+        assertEquals(DocumentIndex.key("doc", "step"), DocumentIndex.key("doc", "step"));
+        assertNotEquals(DocumentIndex.key("doc", "step"), DocumentIndex.key("doc", "other"));
+        assertNotEquals(DocumentIndex.key("ab", "c"), DocumentIndex.key("a", "bc"));
+    }
+
+    @Test
+    public void splitsFieldsFromTheEnd() {
+        assertArrayEquals(new String[]{"name\twith\ttabs", "step", "true"}, DocumentIndex.splitFields("name\twith\ttabs\tstep\ttrue", 3));
+        assertArrayEquals(new String[]{"name", ""}, DocumentIndex.splitFields("name\t", 2));
+        assertNull(DocumentIndex.splitFields("name\tstep", 3));
+    }
+
+    @Test
+    public void indexesMatchingLines() throws Exception {
+        File output = folder.newFolder("output");
+        FileUtils.writeStringToFile(new File(output, "part-00000"), "a\tstep1\ttrue\nb\twith tab\tstep1\tfalse\n", UTF8);
+        FileUtils.writeStringToFile(new File(output, "part-00001"), "c\tstep2\ttrue\nmalformed\n", UTF8);
+        FileUtils.writeStringToFile(new File(output, "_SUCCESS"), "d\tstep1\ttrue\n", UTF8);
+        FileSystem fs = FileSystem.getLocal(new Configuration());
+
+        DocumentIndex all = DocumentIndex.fromTextFiles(fs, output.getAbsolutePath(), 3, 1);
+        assertEquals(3, all.size());
+        assertTrue(all.contains("b\twith tab"));
+        assertFalse(all.contains("d"));
+
+        DocumentIndex passed = DocumentIndex.fromTextFiles(fs, output.getAbsolutePath(), 3, 2, 2, "true");
+        assertEquals(2, passed.size());
+        assertTrue(passed.contains("a", "step1"));
+        assertTrue(passed.contains("c", "step2"));
+        assertFalse(passed.contains("b\twith tab", "step1"));
+        assertFalse(passed.contains("a", "step2"));
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws Exception {
+        File output = folder.newFolder("output");
+        FileUtils.writeStringToFile(new File(output, "part-00000"), "a\t1\nb\t2\nc\t3\n", UTF8);
+        FileSystem fs = FileSystem.getLocal(new Configuration());
+        DocumentIndex index = DocumentIndex.fromTextFiles(fs, output.getAbsolutePath(), 2, 1);
+        String path = new File(folder.getRoot(), "index").getAbsolutePath();
+        index.write(fs, path);
+
+        DocumentIndex read = DocumentIndex.read(fs, path);
+        assertEquals(3, read.size());
+        assertTrue(read.contains("a"));
+        assertTrue(read.contains("c"));
+        assertFalse(read.contains("d"));
+    }
+}
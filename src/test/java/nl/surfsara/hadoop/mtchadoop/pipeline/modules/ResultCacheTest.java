@@ -0,0 +1,137 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.modules;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PipelineStep step(String name, String version) {
+        PipelineStep step = new PipelineStep(name, GenericBashModule.class, 1000, 10);
+        step.setCache(true);
+        step.setCacheVersion(version);
+        step.setCacheLocalDir(folder.getRoot().getAbsolutePath());
+        step.setCacheLocalMb(1);
+        return step;
+    }
+
+    private ResultCache cache(PipelineStep step) throws Exception {
+        return new ResultCache(step, new Configuration());
+    }
+
+    @Test
+    public void keyDependsOnInput() throws Exception {
+        ResultCache cache = cache(step("step", "1"));
+        assertEquals(cache.key("doc".getBytes(UTF8)), cache.key("doc".getBytes(UTF8)));
+        assertNotEquals(cache.key("doc".getBytes(UTF8)), cache.key("other".getBytes(UTF8)));
+    }
+
+    @Test
+    public void keyDependsOnStepVersionAndOptions() throws Exception {
+        byte[] input = "doc".getBytes(UTF8);
+        String key = cache(step("step", "1")).key(input);
+        assertNotEquals(key, cache(step("other", "1")).key(input));
+        assertNotEquals(key, cache(step("step", "2")).key(input));
+        PipelineStep withOption = step("step", "1");
+        withOption.setOption("pattern", "a");
+        assertNotEquals(key, cache(withOption).key(input));
+    }
+
+    @Test
+    public void keyOfDependenciesIgnoresTheirOrder() throws Exception {
+        ResultCache cache = cache(step("merge", "1"));
+        byte[] input = "doc".getBytes(UTF8);
+        Map<String, byte[]> ab = new LinkedHashMap<String, byte[]>();
+        ab.put("a", "output a".getBytes(UTF8));
+        ab.put("b", "output b".getBytes(UTF8));
+        Map<String, byte[]> ba = new LinkedHashMap<String, byte[]>();
+        ba.put("b", "output b".getBytes(UTF8));
+        ba.put("a", "output a".getBytes(UTF8));
+        assertEquals(cache.key(input, ab), cache.key(input, ba));
+        assertNotEquals(cache.key(input), cache.key(input, ab));
+        ba.put("a", "changed".getBytes(UTF8));
+        assertNotEquals(cache.key(input, ab), cache.key(input, ba));
+    }
+
+    @Test
+    public void returnsStoredResult() throws Exception {
+        ResultCache cache = cache(step("step", "1"));
+        String key = cache.key("doc".getBytes(UTF8));
+        assertNull(cache.get(key));
+        cache.put(key, "result".getBytes(UTF8));
+        assertArrayEquals("result".getBytes(UTF8), cache.get(key));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ResultCache cache = cache(step("step", "1"));
+        File dir = new File(folder.getRoot(), "step");
+        byte[] output = new byte[400 * 1024];
+        long now = System.currentTimeMillis();
+        cache.put("first", output);
+        new File(dir, "first").setLastModified(now - 20000);
+        cache.put("second", output);
+        new File(dir, "second").setLastModified(now - 10000);
+        // Exceeds the limit of 1 MB; the oldest entry is enough to get below 90%
+        cache.put("third", output);
+        assertFalse(new File(dir, "first").exists());
+        assertTrue(new File(dir, "second").exists());
+        assertTrue(new File(dir, "third").exists());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("first"));
+    }
+
+    @Test
+    public void evictsStaleTemporaryFiles() throws Exception {
+        ResultCache cache = cache(step("step", "1"));
+        File dir = new File(folder.getRoot(), "step");
+        File stale = new File(dir, ".stale-tmp");
+        File fresh = new File(dir, ".fresh-tmp");
+        FileUtils.writeByteArrayToFile(stale, new byte[10]);
+        FileUtils.writeByteArrayToFile(fresh, new byte[10]);
+        stale.setLastModified(System.currentTimeMillis() - 2 * HOUR);
+        byte[] output = new byte[400 * 1024];
+        for (String key : Arrays.asList("first", "second", "third")) {
+            cache.put(key, output);
+        }
+        assertFalse(stale.exists());
+        assertTrue(fresh.exists());
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 SURFsara
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.hadoop.mtchadoop.pipeline.util;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureOutputStreamTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static void write(CaptureOutputStream cos, String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        cos.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void keepsShortOutputCompletely() {
+        CaptureOutputStream cos = new CaptureOutputStream(4);
+        write(cos, "ab");
+        assertEquals("ab", cos.getSummary());
+        assertEquals(2, cos.getBytesWritten());
+    }
+
+    @Test
+    public void keepsHeadAndTail() {
+        CaptureOutputStream cos = new CaptureOutputStream(4);
+        write(cos, "abcdefghij");
+        assertEquals("abcd\n... [2 bytes omitted] ...\nghij", cos.getSummary());
+        assertEquals(10, cos.getBytesWritten());
+    }
+
+    @Test
+    public void keepsTailAcrossWrites() {
+        CaptureOutputStream cos = new CaptureOutputStream(4);
+        for (String s : new String[]{"abcd", "ef", "gh", "i", "j"}) {
+            write(cos, s);
+        }
+        assertEquals("abcd\n... [2 bytes omitted] ...\nghij", cos.getSummary());
+    }
+
+    @Test
+    public void countsLastLineWithoutNewline() {
+        CaptureOutputStream cos = new CaptureOutputStream(16);
+        assertEquals(0, cos.getLineCount());
+        write(cos, "a\n");
+        assertEquals(1, cos.getLineCount());
+        write(cos, "b");
+        assertEquals(2, cos.getLineCount());
+    }
+
+    @Test
+    public void notifiesListenerOnceWhenLimitExceeded() {
+        final int[] notified = {0};
+        CaptureOutputStream cos = new CaptureOutputStream(16, 2, new CaptureOutputStream.LimitListener() {
+            @Override
+            public void limitExceeded(CaptureOutputStream stream) {
+                notified[0]++;
+            }
+        });
+        write(cos, "1\n2\n");
+        assertFalse(cos.isLimitExceeded());
+        assertEquals(0, notified[0]);
+        write(cos, "3");
+        assertTrue(cos.isLimitExceeded());
+        write(cos, "\n4\n");
+        assertEquals(1, notified[0]);
+    }
+
+    @Test
+    public void noLimitWhenNegative() {
+        CaptureOutputStream cos = new CaptureOutputStream(16, -1, null);
+        write(cos, "1\n2\n3\n");
+        assertFalse(cos.isLimitExceeded());
+    }
+}